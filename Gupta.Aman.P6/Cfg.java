@@ -0,0 +1,615 @@
+import java.util.*;
+
+// **********************************************************************
+// The Cfg class is the control-flow graph of one function, the form in
+// which -ssa generates its code.
+//
+// The cfgGen and cfgJump methods in ast.java build the graph: each
+// statement adds instructions to the current basic block, and control
+// flow (if, while, && and ||, return) ends blocks and starts new ones.
+// An instruction is three-address code
+//     dst = op args...
+// whose operands are variables (locals, formals, globals and
+// temporaries), integer constants and string literals.  A block ends in
+// a jump, a two-way branch on a comparison of two operands, or a return.
+//
+// Ssa puts the graph in SSA form for the optimizations that want it and
+// takes it back out; codeGen then writes the graph as MIPS code, with
+// the same frame layout and calling convention as the code generated
+// from the AST.  Locals, formals and temporaries live in frame slots
+// (temporaries below the locals) unless a register is given to them.
+// **********************************************************************
+
+public class Cfg {
+    // the ways a block can end
+    public static final int JUMP = 0;       // to succs[0]
+    public static final int BRANCH = 1;     // to succs[0] if "left cond right", else succs[1]
+    public static final int RETURN = 2;     // with the value left (null if none)
+
+    // the branch that is taken when cond is not, and the one that is
+    // taken when cond is with its operands swapped
+    private static final Map<String, String> NEGATED = new HashMap<String, String>();
+    private static final Map<String, String> SWAPPED = new HashMap<String, String>();
+    static {
+        String[][] pairs = { { "beq", "bne" }, { "blt", "bge" }, { "bgt", "ble" } };
+        for (String[] pair : pairs) {
+            NEGATED.put(pair[0], pair[1]);
+            NEGATED.put(pair[1], pair[0]);
+        }
+        String[][] swaps = { { "beq", "beq" }, { "bne", "bne" }, { "blt", "bgt" },
+                             { "bgt", "blt" }, { "ble", "bge" }, { "bge", "ble" } };
+        for (String[] swap : swaps)
+            SWAPPED.put(swap[0], swap[1]);
+    }
+
+    // the operations whose operands can be swapped
+    private static final Set<String> COMMUTATIVE = new HashSet<String>(
+        Arrays.asList("add", "mulo", "xor", "seq", "sne"));
+
+    // **********************************************************************
+    // operands
+    // **********************************************************************
+    public static abstract class Operand {
+    }
+
+    public static class Const extends Operand {
+        public final int value;
+
+        public Const(int value) {
+            this.value = value;
+        }
+
+        public String toString() {
+            return "" + value;
+        }
+    }
+
+    // the address of a string literal
+    public static class Str extends Operand {
+        public final StringLitNode lit;
+
+        public Str(StringLitNode lit) {
+            this.lit = lit;
+        }
+
+        public String toString() {
+            return lit.value();
+        }
+    }
+
+    // a local, formal or global (with its symbol), or a temporary (whose
+    // sym is null).  In SSA form each definition of a variable other than
+    // a global makes a new version of it, whose orig is the variable it
+    // is a version of; version 0 is the value the variable has on entry
+    public static class Var extends Operand {
+        public final SemSym sym;
+        public final String name;
+        public Var orig;
+        public int version = 0;
+        public int offset = 0;          // frame slot, unless reg is set
+        public String reg = null;
+
+        public Var(SemSym sym, String name) {
+            this.sym = sym;
+            this.name = name;
+            this.orig = this;
+            if (sym != null)
+                offset = sym.getOffset();
+        }
+
+        public Var newVersion(int version) {
+            Var v = new Var(sym, name);
+            v.orig = orig;
+            v.version = version;
+            v.offset = offset;
+            return v;
+        }
+
+        public boolean isGlobal() {
+            return sym != null && sym.isGlobal();
+        }
+
+        public String toString() {
+            return version == 0 ? name : name + "." + version;
+        }
+    }
+
+    // **********************************************************************
+    // instructions and blocks
+    //
+    // The ops are
+    //     move                   dst = args[0]
+    //     add sub mulo div xor   dst = args[0] op args[1]
+    //     seq sne slt sgt sle sge
+    //     neg                    dst = -args[0]
+    //     call                   dst (or nothing) = callee(args...)
+    //     read readbool          dst = the next int (or bool) of the input
+    //     write writestr         write args[0]
+    //     phi                    dst = the args[k] of the k-th predecessor
+    // **********************************************************************
+    public static class Instr {
+        public String op;
+        public Var dst;
+        public Operand[] args;
+        public String callee = null;
+
+        public Instr(String op, Var dst, Operand[] args) {
+            this.op = op;
+            this.dst = dst;
+            this.args = args;
+        }
+
+        public String toString() {
+            String s = (dst == null ? "" : dst + " = ") + op;
+            if (callee != null)
+                s += " " + callee;
+            for (Operand arg : args)
+                s += " " + arg;
+            return s;
+        }
+    }
+
+    public static class Block {
+        public final int id;
+        public List<Instr> instrs = new ArrayList<Instr>();
+        public List<Block> succs = new ArrayList<Block>(2);
+        public List<Block> preds = new ArrayList<Block>(2);
+        public int end = JUMP;
+        public String cond = null;
+        public Operand left = null, right = null;
+
+        // set by Ssa: the immediate dominator, the blocks it immediately
+        // dominates, and the dominance frontier
+        public Block idom = null;
+        public List<Block> kids = new ArrayList<Block>();
+        public Set<Block> frontier = new LinkedHashSet<Block>();
+
+        private String label = null;
+
+        public Block(int id) {
+            this.id = id;
+        }
+
+        public String toString() {
+            return "B" + id;
+        }
+    }
+
+    // the function
+    public final String name;
+    public final boolean isMain;
+    public final int numFormals;
+    public final int localsSize;
+
+    // set by Regalloc: the callee-saved registers the function uses, and
+    // the variables given registers that must be loaded on entry
+    public List<String> savedRegs = new ArrayList<String>();
+    public List<Var> entryLoads = new ArrayList<Var>();
+
+    // its blocks, entry first, in the order their code is laid out
+    public List<Block> blocks = new ArrayList<Block>();
+    public Block entry;
+
+    // while the graph is built: the block instructions are added to (null
+    // after a jump, branch or return), and the variables made so far
+    private Block current;
+    private Map<SemSym, Var> vars = new HashMap<SemSym, Var>();
+    private int numTemps = 0;
+    private int numBlocks = 0;
+
+    public Cfg(String name, boolean isMain, int numFormals, int localsSize) {
+        this.name = name;
+        this.isMain = isMain;
+        this.numFormals = numFormals;
+        this.localsSize = localsSize;
+        entry = newBlock();
+        current = entry;
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // BUILDING
+    // **********************************************************************
+    // **********************************************************************
+
+    // the variable of the given local, formal or global
+    public Var var(SemSym sym, String name) {
+        Var v = vars.get(sym);
+        if (v == null) {
+            v = new Var(sym, name);
+            vars.put(sym, v);
+        }
+        return v;
+    }
+
+    public Var newTemp() {
+        return new Var(null, "t" + numTemps++);
+    }
+
+    public Block newBlock() {
+        Block b = new Block(numBlocks++);
+        blocks.add(b);
+        return b;
+    }
+
+    // the block to add to; code after a return is put in a block of its
+    // own, which nothing reaches
+    private Block current() {
+        if (current == null)
+            current = newBlock();
+        return current;
+    }
+
+    public void add(String op, Var dst, Operand... args) {
+        current().instrs.add(new Instr(op, dst, args));
+    }
+
+    public void call(Var dst, String callee, Operand[] args) {
+        Instr call = new Instr("call", dst, args);
+        call.callee = callee;
+        current().instrs.add(call);
+    }
+
+    public void jump(Block target) {
+        current().succs.add(target);
+        current = null;
+    }
+
+    public void branch(String cond, Operand left, Operand right,
+                       Block ifTrue, Block ifFalse) {
+        Block b = current();
+        b.end = BRANCH;
+        b.cond = cond;
+        b.left = left;
+        b.right = right;
+        b.succs.add(ifTrue);
+        b.succs.add(ifFalse);
+        current = null;
+    }
+
+    public void ret(Operand value) {
+        Block b = current();
+        b.end = RETURN;
+        b.left = value;
+        current = null;
+    }
+
+    // go on adding to b, which the current block (if any) falls into
+    public void startBlock(Block b) {
+        if (current != null)
+            jump(b);
+        blocks.remove(b);
+        blocks.add(b);          // lay b out after the code so far
+        current = b;
+    }
+
+    // **********************************************************************
+    // keep
+    //    given:  an operand just built, and the expression evaluated after
+    //            it and before it is used
+    //    return: the operand, or a copy of it in a temporary if rest may
+    //            change the variable before the use reads it
+    // **********************************************************************
+    public Operand keep(Operand value, ASTnode rest) {
+        if (!(value instanceof Var) || ((Var)value).sym == null)
+            return value;
+        List<AssignNode> assigns = new LinkedList<AssignNode>();
+        List<CallExpNode> calls = new LinkedList<CallExpNode>();
+        rest.collect(AssignNode.class, assigns);
+        if (((Var)value).isGlobal())
+            rest.collect(CallExpNode.class, calls);
+        if (assigns.isEmpty() && calls.isEmpty())
+            return value;
+        Var copy = newTemp();
+        add("move", copy, value);
+        return copy;
+    }
+
+    // **********************************************************************
+    // finish
+    //    do:     end the function (falling off its end returns), fill in
+    //            the predecessors and drop the blocks nothing reaches
+    // **********************************************************************
+    public void finish() {
+        if (current != null)
+            ret(null);
+
+        Set<Block> reached = new HashSet<Block>();
+        Deque<Block> work = new ArrayDeque<Block>();
+        reached.add(entry);
+        work.push(entry);
+        while (!work.isEmpty()) {
+            for (Block s : work.pop().succs) {
+                if (reached.add(s))
+                    work.push(s);
+            }
+        }
+        blocks.retainAll(reached);
+        for (Block b : blocks) {
+            for (Block s : b.succs)
+                s.preds.add(b);
+        }
+    }
+
+    // **********************************************************************
+    // removeEdge
+    //    given:  a block and one of its successors
+    //    do:     remove the edge between them, with the matching phi
+    //            operands of the successor
+    // **********************************************************************
+    public static void removeEdge(Block from, Block to) {
+        from.succs.remove(to);
+        int k = to.preds.indexOf(from);
+        to.preds.remove(k);
+        for (Instr instr : to.instrs) {
+            if (!instr.op.equals("phi"))
+                break;
+            List<Operand> args = new ArrayList<Operand>(Arrays.asList(instr.args));
+            args.remove(k);
+            instr.args = args.toArray(new Operand[args.size()]);
+        }
+    }
+
+    // **********************************************************************
+    // splitEdge
+    //    given:  a block and one of its successors
+    //    return: a new block put on the edge between them, laid out just
+    //            before the successor
+    // **********************************************************************
+    public Block splitEdge(Block from, Block to) {
+        Block b = newBlock();
+        blocks.remove(b);
+        blocks.add(blocks.indexOf(to), b);
+        from.succs.set(from.succs.indexOf(to), b);
+        to.preds.set(to.preds.indexOf(from), b);
+        b.preds.add(from);
+        b.succs.add(to);
+        return b;
+    }
+
+    // for debugging: the graph as text
+    public String toString() {
+        StringBuilder s = new StringBuilder(name + ":\n");
+        for (Block b : blocks) {
+            s.append(b + " <- " + b.preds + "\n");
+            for (Instr instr : b.instrs)
+                s.append("\t" + instr + "\n");
+            if (b.end == JUMP)
+                s.append("\tjump " + b.succs.get(0) + "\n");
+            else if (b.end == BRANCH)
+                s.append("\t" + b.cond + " " + b.left + " " + b.right + " " +
+                         b.succs.get(0) + " else " + b.succs.get(1) + "\n");
+            else
+                s.append("\treturn " + (b.left == null ? "" : b.left) + "\n");
+        }
+        return s.toString();
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // CODE GENERATION
+    // **********************************************************************
+    // **********************************************************************
+
+    // **********************************************************************
+    // codeGen
+    //    do:     write the function's code; the graph must be out of SSA
+    //            form
+    // **********************************************************************
+    public void codeGen() {
+        // temporaries without a register get the slots below the locals
+        int formalsSize = numFormals * 4;
+        int frameSize = localsSize;
+        Set<Var> placed = new HashSet<Var>();
+        for (Block b : blocks) {
+            for (Instr instr : b.instrs) {
+                Var t = instr.dst;
+                if (t != null && t.sym == null && t.reg == null && placed.add(t)) {
+                    t.offset = -(formalsSize + 8 + frameSize);
+                    frameSize += 4;
+                }
+            }
+        }
+
+        Codegen.generate(".text");
+        if (isMain) {
+            Codegen.generate(".globl main");
+            Codegen.genLabel("main");
+            Codegen.genLabel("__start");
+            Codegen.genGlobalPointer();
+        }
+        else
+            Codegen.genLabel("_" + name);
+        Codegen.genPush(Codegen.RA);
+        Codegen.genPush(Codegen.FP);
+        Codegen.generate("addu", Codegen.FP, Codegen.SP, formalsSize + 8);
+        int savedBase = -(formalsSize + 8 + frameSize);
+        frameSize += 4 * savedRegs.size();
+        Codegen.generateWithComment("subu", "Function entry finished",
+                                    Codegen.SP, Codegen.SP, "" + frameSize);
+        for (int k = 0; k < savedRegs.size(); k++)
+            Codegen.generateIndexed("sw", savedRegs.get(k), Codegen.FP,
+                                    savedBase - 4 * k, "Save " + savedRegs.get(k));
+        for (Var v : entryLoads)
+            Codegen.generateIndexed("lw", v.reg, Codegen.FP, v.offset);
+
+        for (Block b : blocks)
+            b.label = Codegen.nextLabel();
+        String exitLabel = Codegen.nextLabel();
+
+        for (int k = 0; k < blocks.size(); k++) {
+            Block b = blocks.get(k);
+            Block next = k + 1 < blocks.size() ? blocks.get(k + 1) : null;
+            if (b != entry)
+                Codegen.genLabel(b.label);
+            for (Instr instr : b.instrs)
+                genInstr(instr);
+
+            if (b.end == JUMP) {
+                if (b.succs.get(0) != next)
+                    Codegen.generate("b", b.succs.get(0).label);
+            }
+            else if (b.end == BRANCH) {
+                Block ifTrue = b.succs.get(0), ifFalse = b.succs.get(1);
+                if (b.left instanceof Const && !(b.right instanceof Const)) {
+                    Operand left = b.left;  // the immediate goes second
+                    b.left = b.right;
+                    b.right = left;
+                    b.cond = SWAPPED.get(b.cond);
+                }
+                String left = use(b.left, Codegen.T0);
+                String right = useRight(b.right);
+                if (ifTrue == next)
+                    Codegen.generate(NEGATED.get(b.cond), left, right, ifFalse.label);
+                else {
+                    Codegen.generate(b.cond, left, right, ifTrue.label);
+                    if (ifFalse != next)
+                        Codegen.generate("b", ifFalse.label);
+                }
+            }
+            else {
+                if (b.left != null) {
+                    String value = use(b.left, Codegen.V0);
+                    if (!value.equals(Codegen.V0))
+                        Codegen.generate("move", Codegen.V0, value);
+                }
+                if (next != null)
+                    Codegen.generate("b", exitLabel);
+            }
+        }
+
+        Codegen.genLabel(exitLabel);
+        for (int k = 0; k < savedRegs.size(); k++)
+            Codegen.generateIndexed("lw", savedRegs.get(k), Codegen.FP,
+                                    savedBase - 4 * k, "Restore " + savedRegs.get(k));
+        Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, -formalsSize, "Load ra");
+        Codegen.generateWithComment("move", "Save control link", Codegen.T0, Codegen.FP);
+        Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -formalsSize-4, "Restore FP");
+        Codegen.generate("move", Codegen.SP, Codegen.T0);
+        if (isMain) {
+            MipsRuntime.genFlush();
+            Codegen.generate("li", Codegen.V0, "10");
+            Codegen.generateWithComment("syscall", "Exit main function");
+        }
+        else
+            Codegen.generateWithComment("jr", "Function exit finished", Codegen.RA);
+    }
+
+    private void genInstr(Instr instr) {
+        String op = instr.op;
+        Operand[] args = instr.args;
+        if (op.equals("move")) {
+            store(instr.dst, use(args[0], target(instr.dst)));
+        }
+        else if (op.equals("neg")) {
+            String value = use(args[0], Codegen.T0);
+            Codegen.generate("sub", target(instr.dst), "$zero", value);
+            store(instr.dst, target(instr.dst));
+        }
+        else if (op.equals("call")) {
+            for (Operand arg : args)
+                Codegen.genPush(use(arg, Codegen.T0));
+            Codegen.generate("jal", instr.callee.equals("main") ? "main"
+                                                                : "_" + instr.callee);
+            if (instr.dst != null)
+                store(instr.dst, Codegen.V0);
+        }
+        else if (op.equals("read") || op.equals("readbool")) {
+            if (Codegen.bufferIn)
+                MipsRuntime.genRead();
+            else {
+                MipsRuntime.genFlush();
+                Codegen.generateWithComment("li", "Read start", Codegen.V0, "5");
+                Codegen.generate("syscall");
+            }
+            if (op.equals("readbool"))
+                Codegen.generate("sne", Codegen.V0, Codegen.V0, "$zero");
+            store(instr.dst, Codegen.V0);
+        }
+        else if (op.equals("write") || op.equals("writestr")) {
+            String value = use(args[0], Codegen.A0);
+            if (!value.equals(Codegen.A0))
+                Codegen.generate("move", Codegen.A0, value);
+            if (Codegen.bufferOut)
+                MipsRuntime.genWrite(op.equals("writestr"));
+            else {
+                Codegen.generate("li", Codegen.V0, op.equals("write") ? 1 : 4);
+                Codegen.generateWithComment("syscall", "Write end");
+            }
+        }
+        else {
+            // a binary operation; mulo and div take no immediates
+            if (COMMUTATIVE.contains(op) && args[0] instanceof Const) {
+                Operand left = args[0];
+                args[0] = args[1];
+                args[1] = left;
+            }
+            String left = use(args[0], Codegen.T0);
+            String right = op.equals("mulo") || op.equals("div")
+                           ? use(args[1], Codegen.T1) : useRight(args[1]);
+            if (Codegen.wrap && op.equals("mulo")) {
+                Codegen.generate("mult", left, right);
+                Codegen.generate("mflo", target(instr.dst));
+            }
+            else if (Codegen.wrap && op.equals("div") && args[1] instanceof Const &&
+                     ((Const)args[1]).value != 0) {
+                Codegen.generate("div", left, right);   // not by 0, no check
+                Codegen.generate("mflo", target(instr.dst));
+            }
+            else
+                Codegen.generate(op, target(instr.dst), left, right);
+            store(instr.dst, target(instr.dst));
+        }
+    }
+
+    // **********************************************************************
+    // use
+    //    given:  an operand and a scratch register
+    //    do:     get the operand's value into a register (the scratch one
+    //            unless the value already is in one)
+    //    return: that register
+    // **********************************************************************
+    private static String use(Operand value, String scratch) {
+        if (value instanceof Const) {
+            if (((Const)value).value == 0)
+                return "$zero";
+            Codegen.generate("li", scratch, "" + ((Const)value).value);
+        }
+        else if (value instanceof Str)
+            Codegen.generate("la", scratch, ((Str)value).lit.label());
+        else {
+            Var v = (Var)value;
+            if (v.reg != null)
+                return v.reg;
+            if (v.isGlobal())
+                Codegen.generate("lw", scratch, Codegen.global(v.sym, v.name));
+            else
+                Codegen.generateIndexed("lw", scratch, Codegen.FP, v.offset);
+        }
+        return scratch;
+    }
+
+    // the second operand of an instruction that takes an immediate
+    private static String useRight(Operand value) {
+        if (value instanceof Const)
+            return "" + ((Const)value).value;
+        return use(value, Codegen.T1);
+    }
+
+    // the register to compute the value of dst in
+    private static String target(Var dst) {
+        return dst.reg != null ? dst.reg : Codegen.T0;
+    }
+
+    // copy the value in reg to dst
+    private static void store(Var dst, String reg) {
+        if (dst.reg != null) {
+            if (!dst.reg.equals(reg))
+                Codegen.generate("move", dst.reg, reg);
+        }
+        else if (dst.isGlobal())
+            Codegen.generate("sw", reg, Codegen.global(dst.sym, dst.name));
+        else
+            Codegen.generateIndexed("sw", reg, Codegen.FP, dst.offset);
+    }
+}
@@ -1,11 +1,14 @@
 import java.io.*;
+import java.util.*;
 
 // **********************************************************************
 // The Codegen class provides constants and operations useful for code
 // generation.
 //
 // The constants are:
-//     Registers: FP, SP, RA, V0, V1, A0, T0, T1
+//     Registers: FP, SP, RA, GP, V0, V1, A0-A3, T0, T1
+//                (and ARGS, the argument registers in order)
+//     Labels: GLOBALS, the section holding the global variables
 //     Values: TRUE, FALSE
 //
 // The operations are include various "generate" methods to print nicely
@@ -16,8 +19,85 @@ import java.io.*;
 //     generateLabeled
 //     genPush
 //     genPop
+//     genPeek
+//     genArgs
 //     genLabel
-// and a method nextLabel to create and return a new label.
+// a method nextLabel to create and return a new label, genOutOfLine to
+// move a block of code to the end of the current function, global and
+// genGlobalPointer to address the global variables, strings, the pool of
+// the string constants (see StringPool), and startBody,
+// endBody and genBody to generate a function's body ahead of its entry.
+//
+// The optimization switches are set from the command line by setOption:
+//     -O                  turn on all of the optimizations below but
+//                         -wrap and -bufout
+//     -inline             expand calls to small non-recursive functions
+//     -inline-budget=N    largest body (in AST nodes) that is inlined
+//     -leaf               don't save RA in functions that make no calls,
+//                         pass them their first formals in A0-A3, and
+//                         omit their frame when nothing needs a slot
+//     -regargs            pass the first four actuals of every call in
+//                         A0-A3 instead of on the stack
+//     -tailcall           compile "return f(...)" as a jump that reuses
+//                         the current frame, when f is the function
+//                         itself or takes as many actuals on the stack
+//     -strength           multiply and divide by constants with shifts,
+//                         adds and multiplies by a reciprocal (without
+//                         -wrap, a multiply first checks that the value
+//                         cannot overflow)
+//     -wrap               multiply with mult and mflo, which wrap on
+//                         overflow as the JVM back end does, instead of
+//                         mulo, which traps; divide by a nonzero constant
+//                         with div and mflo, skipping the zero check
+//                         (this changes what a program that overflows
+//                         does, so -O leaves it off)
+//     -cse                keep the value of an arithmetic expression that
+//                         is computed again later in the same basic block
+//                         in a temporary (see Cse)
+//     -temps              keep the values pushed while an expression is
+//                         evaluated in fixed slots of the frame instead
+//                         of moving SP for each one, and store the
+//                         actuals of a call passed on the stack straight
+//                         into an area reserved for them all at once
+//     -select             cover expression trees with instructions that
+//                         keep operands in registers and take constants
+//                         as immediates, and branch on comparisons
+//                         directly (see Select)
+//     -bufout             collect the output of cout in a buffer written
+//                         with one syscall when it fills, before cin and
+//                         when main exits (see MipsRuntime); with -ssa too.
+//                         What is still in the buffer is lost if the
+//                         program stops with an error, so -O leaves it off
+//     -bufin              read the input for cin a block at a time into a
+//                         buffer and parse the ints from there (see
+//                         MipsRuntime); with -ssa too
+//     -fusewrites         write a run of couts of constants (strings and
+//                         int or bool expressions of literals) as one
+//                         string
+//     -branches           drop a branch to the next instruction and turn
+//                         "bxx L1; b L2; L1:" into "bnot L2; L1:"
+//     -profile-use=FILE   lay out branches and loops, inline calls and
+//                         order functions by the counts in a profile
+//                         written by MipsSim -profile=FILE (see Profile);
+//                         implies -branches
+// and the back end by:
+//     -jvm                write a JVM class file (see JvmGen) instead of
+//                         MIPS code; the class is named after the file
+//     -run                with -jvm, also run the class in this JVM
+//     -profile            label function entries and loop bodies so that
+//                         MipsSim -profile can count them (see Profile)
+//     -interp             run the program with Interp instead of
+//                         generating code; the third file is not needed
+//     -ssa                generate each function from its control-flow
+//                         graph in SSA form (see Cfg and Ssa) instead of
+//                         from the AST; the switches above that change
+//                         how the AST is compiled have no effect on it
+//     -sccp               with -ssa (which it implies), propagate
+//                         constants through locals and remove the code
+//                         they show can never run (see Sccp)
+//     -regalloc           with -ssa (which it implies), keep locals,
+//                         formals and temporaries in registers for the
+//                         whole function (see Regalloc)
 //
 // **********************************************************************
 
@@ -25,6 +105,9 @@ public class Codegen {
     // file into which generated code is written
     public static PrintWriter p = null;    
 
+    // string constants of the program being compiled
+    public static StringPool strings = null;
+
     // values of true and false
     public static final String TRUE = "1";
     public static final String FALSE = "0";
@@ -33,12 +116,26 @@ public class Codegen {
     public static final String FP = "$fp";
     public static final String SP = "$sp";
     public static final String RA = "$ra";
+    public static final String GP = "$gp";
     public static final String V0 = "$v0";
     public static final String V1 = "$v1";
     public static final String A0 = "$a0";
+    public static final String A1 = "$a1";
+    public static final String A2 = "$a2";
+    public static final String A3 = "$a3";
+    public static final String[] ARGS = { A0, A1, A2, A3 };
     public static final String T0 = "$t0";
     public static final String T1 = "$t1";
 
+    // the global variables lie one after the other in a single section
+    // starting here (a name no CFlat identifier gives), which GP points
+    // at while the program runs; globalsSize is its size in bytes
+    public static final String GLOBALS = ".Lglobals";
+    public static int globalsSize = 0;
+
+    // the largest offset a load or store can add to a register
+    private static final int MAX_OFFSET = 32767;
+
 
     // for pretty printing generated code
     private static final int MAXLEN = 4;
@@ -47,6 +144,115 @@ public class Codegen {
     // for generating labels
     private static int currLabel = 0;
 
+    // optimization switches
+    public static boolean inline = false;
+    public static int inlineBudget = 40;
+    public static boolean leafOpt = false;
+    public static boolean regArgs = false;
+    public static boolean tailCalls = false;
+    public static boolean strength = false;
+    public static boolean wrap = false;
+    public static boolean cse = false;
+    public static boolean select = false;
+    public static boolean temps = false;
+    public static boolean bufferOut = false;
+    public static boolean bufferIn = false;
+    public static boolean fuseWrites = false;
+    public static boolean branches = false;
+    public static String profileFile = null;
+
+    // back end switches
+    public static boolean jvm = false;
+    public static boolean runJvm = false;
+    public static boolean interp = false;
+    public static boolean profile = false;
+    public static boolean ssa = false;
+    public static boolean sccp = false;
+    public static boolean regalloc = false;
+
+    // while the body of an inlined function is generated, its locals and
+    // formals live in the caller's frame at frameDelta + their own offsets;
+    // inlineBase is the offset of the first frame slot not yet in use
+    public static int frameDelta = 0;
+    public static int inlineBase = 0;
+
+
+    // **********************************************************************
+    // setOption
+    //    given:  a command-line option
+    //    do:     set the matching switch; return false if it is unknown
+    // **********************************************************************
+    public static boolean setOption(String opt) {
+        if (opt.equals("-O")) {
+            inline = true;
+            leafOpt = true;
+            regArgs = true;
+            tailCalls = true;
+            strength = true;
+            cse = true;
+            select = true;
+            temps = true;
+            bufferIn = true;
+            fuseWrites = true;
+            branches = true;
+        } else if (opt.equals("-inline")) {
+            inline = true;
+        } else if (opt.equals("-leaf")) {
+            leafOpt = true;
+        } else if (opt.equals("-regargs")) {
+            regArgs = true;
+        } else if (opt.equals("-tailcall")) {
+            tailCalls = true;
+        } else if (opt.equals("-strength")) {
+            strength = true;
+        } else if (opt.equals("-wrap")) {
+            wrap = true;
+        } else if (opt.equals("-cse")) {
+            cse = true;
+        } else if (opt.equals("-temps")) {
+            temps = true;
+        } else if (opt.equals("-select")) {
+            select = true;
+        } else if (opt.equals("-bufout")) {
+            bufferOut = true;
+        } else if (opt.equals("-bufin")) {
+            bufferIn = true;
+        } else if (opt.equals("-fusewrites")) {
+            fuseWrites = true;
+        } else if (opt.equals("-branches")) {
+            branches = true;
+        } else if (opt.startsWith("-profile-use=")) {
+            profileFile = opt.substring(13);
+            branches = true;
+        } else if (opt.equals("-jvm")) {
+            jvm = true;
+        } else if (opt.equals("-run")) {
+            jvm = true;
+            runJvm = true;
+        } else if (opt.equals("-profile")) {
+            profile = true;
+        } else if (opt.equals("-interp")) {
+            interp = true;
+        } else if (opt.equals("-ssa")) {
+            ssa = true;
+        } else if (opt.equals("-sccp")) {
+            ssa = true;
+            sccp = true;
+        } else if (opt.equals("-regalloc")) {
+            ssa = true;
+            regalloc = true;
+        } else if (opt.startsWith("-inline-budget=")) {
+            try {
+                inlineBudget = Integer.parseInt(opt.substring(15));
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
 
     // **********************************************************************
     // **********************************************************************
@@ -63,6 +269,7 @@ public class Codegen {
                                         String arg1, String arg2, String arg3) {
         int space = MAXLEN - opcode.length() + 2;
     
+        flushBranches();
         p.print("\t" + opcode);
         if (arg1 != "") {
             for (int k = 1; k <= space; k++) 
@@ -100,6 +307,14 @@ public class Codegen {
     // **********************************************************************
     public static void generate(String opcode, String arg1, String arg2,
                                 String arg3) {
+        if (branches && holdBranch(opcode, arg1, arg2, arg3))
+            return;
+        flushBranches();
+        write(opcode, arg1, arg2, arg3);
+    }
+
+    private static void write(String opcode, String arg1, String arg2,
+                              String arg3) {
         int space = MAXLEN - opcode.length() + 2;
     
         p.print("\t" + opcode);
@@ -137,6 +352,7 @@ public class Codegen {
                                 int arg3) {
         int space = MAXLEN - opcode.length() + 2;
     
+        flushBranches();
         p.print("\t" + opcode);
         for (int k = 1; k <= space; k++) 
             p.print(" ");
@@ -151,12 +367,35 @@ public class Codegen {
     public static void generate(String opcode, String arg1, int arg2) {
         int space = MAXLEN - opcode.length() + 2;
     
+        flushBranches();
         p.print("\t" + opcode);
         for (int k = 1; k <= space; k++) 
             p.print(" ");
         p.println(arg1 + ", " + arg2);
     }
     
+    // **********************************************************************
+    // global
+    //    given:  the symbol and name of a global variable
+    //    return: its address as an operand: its offset from GP, or its
+    //            label if it lies beyond the reach of one
+    // **********************************************************************
+    public static String global(SemSym sym, String name) {
+        int offset = sym.getOffset();
+        if (offset >= 0 && offset <= MAX_OFFSET)
+            return offset + "(" + GP + ")";
+        return "_" + name;
+    }
+
+    // **********************************************************************
+    // genGlobalPointer
+    //    do:     on entry to main, point GP at the global variables
+    // **********************************************************************
+    public static void genGlobalPointer() {
+        if (globalsSize > 0)
+            generate("la", GP, GLOBALS);
+    }
+
     // **********************************************************************
     // generateIndexed
     //    given:  op code, target register T1 (as string), indexed register T2
@@ -168,6 +407,7 @@ public class Codegen {
                                        int arg3, String comment) {
         int space = MAXLEN - opcode.length() + 2;
     
+        flushBranches();
         p.print("\t" + opcode);
         for (int k = 1; k <= space; k++) 
             p.print(" ");
@@ -191,6 +431,7 @@ public class Codegen {
                                        String comment, String arg1) {
         int space = MAXLEN - opcode.length() + 2;
     
+        flushBranches();
         p.print(label + ":");
         p.print("\t" + opcode);
         if (arg1 != "") {
@@ -213,6 +454,12 @@ public class Codegen {
     //    generate code to push the given value onto the stack
     // **********************************************************************
     public static void genPush(String s) {
+        if (inTemps) {
+            generateIndexed("sw", s, FP, tempBase - 4*tempDepth, "PUSH");
+            tempDepth++;
+            tempSize = Math.max(tempSize, 4*tempDepth);
+            return;
+        }
         generateIndexed("sw", s, SP, 0, "PUSH");
         generate("subu", SP, SP, 4);
     }
@@ -222,20 +469,130 @@ public class Codegen {
     //    generate code to pop into the given register
     // **********************************************************************
     public static void genPop(String s) {
+        if (inTemps) {
+            tempDepth--;
+            generateIndexed("lw", s, FP, tempBase - 4*tempDepth, "POP");
+            return;
+        }
         generateIndexed("lw", s, SP, 4, "POP");
         generate("addu", SP, SP, 4);
     }
 
+    // **********************************************************************
+    // genPeek
+    //    given:  a register and a number k
+    //    do:     load the k'th value from the top of the stack (the top
+    //            one is 1) into the register, leaving it there
+    // **********************************************************************
+    public static void genPeek(String s, int k) {
+        if (inTemps)
+            generateIndexed("lw", s, FP, tempBase - 4*(tempDepth - k));
+        else
+            generateIndexed("lw", s, SP, 4*k);
+    }
+
+    // **********************************************************************
+    // genArgs
+    //    given:  the number n of values last pushed, which are the
+    //            actuals of a call passed on the stack, and the number of
+    //            values pushed before them that are no longer needed
+    //    do:     leave the n actuals on top of the stack, the last one on
+    //            top, where the callee expects them
+    // **********************************************************************
+    public static void genArgs(int n, int drop) {
+        if (inTemps) {
+            // move them out of their slots onto the stack
+            if (n > 0)
+                generate("subu", SP, SP, 4*n);
+            for (int k = 0; k < n; k++) {
+                generateIndexed("lw", T0, FP, tempBase - 4*(tempDepth - n + k));
+                generateIndexed("sw", T0, SP, 4*(n-k));
+            }
+            tempDepth -= n + drop;
+            return;
+        }
+        if (drop > 0) {
+            // slide them up over the others
+            for (int k = 0; k < n; k++) {
+                generateIndexed("lw", T0, SP, 4*(n-k));
+                generateIndexed("sw", T0, SP, 4*(n-k+drop));
+            }
+            generate("addu", SP, SP, 4*drop);
+        }
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // FUNCTION BODIES
+    // **********************************************************************
+    // **********************************************************************
+
+    // the body of a function is generated into a buffer before its entry
+    // code is written; with -temps (in a function with a frame) the
+    // values pushed while evaluating expressions in it go to the slots
+    // of the frame below tempBase, the k'th one from the bottom at
+    // tempBase - 4*k from FP, instead of onto the stack.  tempDepth is
+    // the number of values there, and tempSize the bytes of slots needed
+    // at most, which the entry code makes room for.
+    private static PrintWriter entryP = null;
+    private static StringWriter body = null;
+    private static boolean inTemps = false;
+    private static int tempBase;
+    private static int tempDepth;
+    private static int tempSize;
+
+    // **********************************************************************
+    // startBody
+    //    given:  the offset from FP of the first free slot of the frame
+    //            of the function about to be generated, or null if it
+    //            has no frame
+    //    do:     send the code of its body to a buffer
+    // **********************************************************************
+    public static void startBody(Integer base) {
+        entryP = p;
+        body = new StringWriter();
+        p = new PrintWriter(body);
+        inTemps = temps && base != null;
+        tempBase = inTemps ? base : 0;
+        tempDepth = 0;
+        tempSize = 0;
+    }
+
+    // **********************************************************************
+    // endBody
+    //    do:     end the body and go back to writing the output
+    //    return: the number of bytes of slots its temporaries need
+    // **********************************************************************
+    public static int endBody() {
+        flushBranches();
+        p.flush();
+        p = entryP;
+        inTemps = false;
+        return tempSize;
+    }
+
+    // **********************************************************************
+    // genBody
+    //    write the body ended by endBody
+    // **********************************************************************
+    public static void genBody() {
+        p.print(body);
+        body = null;
+    }
+
     // **********************************************************************
     // genLabel
     //   given:    label L and comment (comment may be empty)
     //   generate: L:    # comment
     // **********************************************************************
     public static void genLabel(String label, String comment) {
-        p.print(label + ":");
+        String line = label + ":";
         if (comment != "") 
-            p.print("\t\t" + "# " + comment);
-        p.println();
+            line += "\t\t" + "# " + comment;
+        if (branches && reachLabel(label, line))
+            return;
+        flushBranches();
+        p.println(line);
     }
     
     public static void genLabel(String label) {
@@ -251,4 +608,135 @@ public class Codegen {
         String tmp = ".L" + k;
         return(tmp);
     }
+
+    // **********************************************************************
+    // **********************************************************************
+    // BRANCH PEEPHOLE
+    // **********************************************************************
+    // **********************************************************************
+
+    // with -branches, a conditional branch and a b right after it are held
+    // back, along with the labels that follow them, until the next
+    // instruction; the labels all stand for that instruction, so a held
+    // branch to one of them can be dropped
+    private static String[] heldBranch = null;    // op, arg1, arg2, target
+    private static String heldJump = null;        // target of the b
+    private static List<String> heldLabels = new ArrayList<String>();
+
+    private static final String[] BRANCHES = { "beq", "bne", "blt", "bge", "bgt", "ble" };
+    private static final String[] NEGATED  = { "bne", "beq", "bge", "blt", "ble", "bgt" };
+
+    // hold back a branch instead of writing it; return false if it is not
+    // one that can be held
+    private static boolean holdBranch(String opcode, String arg1, String arg2,
+                                      String arg3) {
+        if (opcode.equals("b")) {
+            if (heldJump != null && heldLabels.isEmpty())
+                return true;                // never reached
+            // a b after labels is not right after the branch: the labels
+            // must stay in front of it, for the jumps to them
+            if (heldJump != null || !heldLabels.isEmpty())
+                flushBranches();
+            heldJump = arg1;
+            return true;
+        }
+        if (Arrays.asList(BRANCHES).contains(opcode) && arg3 != "") {
+            flushBranches();
+            heldBranch = new String[] { opcode, arg1, arg2, arg3 };
+            return true;
+        }
+        return false;
+    }
+
+    // the held branches are followed by label (written as line): drop the
+    // ones to it, and branch over a b with the negated branch; return
+    // true if the label is held back too
+    private static boolean reachLabel(String label, String line) {
+        if (heldJump != null && heldJump.equals(label))
+            heldJump = null;
+        if (heldBranch != null && heldBranch[3].equals(label)) {
+            if (heldJump == null)
+                heldBranch = null;
+            else {
+                int k = Arrays.asList(BRANCHES).indexOf(heldBranch[0]);
+                heldBranch = new String[] { NEGATED[k], heldBranch[1],
+                                            heldBranch[2], heldJump };
+                heldJump = null;
+            }
+        }
+        if (heldBranch == null && heldJump == null)
+            return false;
+        heldLabels.add(line);
+        return true;
+    }
+
+    // **********************************************************************
+    // flushBranches
+    //    write the branches held back by -branches
+    // **********************************************************************
+    public static void flushBranches() {
+        String[] branch = heldBranch;
+        String jump = heldJump;
+        heldBranch = null;
+        heldJump = null;
+        if (branch != null)
+            write(branch[0], branch[1], branch[2], branch[3]);
+        if (jump != null)
+            write("b", jump, "", "");
+        for (String line : heldLabels)
+            p.println(line);
+        heldLabels.clear();
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // OUT-OF-LINE CODE
+    // **********************************************************************
+    // **********************************************************************
+
+    // code moved out of the way by genOutOfLine, to be written after the
+    // current function
+    private static StringBuilder outOfLine = new StringBuilder();
+
+    // **********************************************************************
+    // genOutOfLine
+    //    given:  a label, the label of the code to continue with, and the
+    //            code generator of a block
+    //    do:     generate the block at the label, followed by a branch
+    //            to the continuation, but out of the way of the code
+    //            around it
+    // **********************************************************************
+    public static void genOutOfLine(String label, String backLabel, Runnable block) {
+        PrintWriter savedP = p;
+        String[] savedBranch = heldBranch;
+        String savedJump = heldJump;
+        List<String> savedLabels = heldLabels;
+        heldBranch = null;
+        heldJump = null;
+        heldLabels = new ArrayList<String>();
+
+        StringWriter text = new StringWriter();
+        p = new PrintWriter(text);
+        genLabel(label);
+        block.run();
+        generate("b", backLabel);
+        flushBranches();
+        p.flush();
+        outOfLine.append(text);
+
+        p = savedP;
+        heldBranch = savedBranch;
+        heldJump = savedJump;
+        heldLabels = savedLabels;
+    }
+
+    // **********************************************************************
+    // genOutOfLineCode
+    //    write the blocks moved out of line since the last call
+    // **********************************************************************
+    public static void genOutOfLineCode() {
+        flushBranches();
+        p.print(outOfLine);
+        outOfLine.setLength(0);
+    }
 }
@@ -0,0 +1,208 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The Cse class does the local common-subexpression elimination of -cse.
+//
+// Before a function's code is generated, each basic block of its body is
+// walked in the order its code evaluates it.  A block is a run of the
+// statements of one statement list up to an if or while statement (and
+// includes the condition of an if statement, which is evaluated before
+// the branch).  An arithmetic expression made of variables and literals
+// is available once it has been evaluated, until one of its variables
+// may change: it is assigned, incremented, decremented or read into, or
+// it is a global and a function is called.  An expression evaluated
+// while one with the same text is available is a reuse: the code of the
+// first saves its value in a temporary and the reuse loads it from
+// there instead of computing it again.  The second operand of && or ||
+// may not be evaluated at all, so expressions in it take no part.
+//
+// The temporaries are frame slots below the function's locals; blocks
+// never overlap, so they all share the same slots.
+// **********************************************************************
+
+public class Cse {
+    // the frame offset of the temporary each saving or reusing
+    // expression stores its value in or loads it from
+    private static Map<ExpNode, Integer> saves = new HashMap<ExpNode, Integer>();
+    private static Map<ExpNode, Integer> reuses = new HashMap<ExpNode, Integer>();
+
+    // while a block is walked: the available expressions by their text,
+    // and the reuses of each one
+    private static Map<String, ExpNode> available = new HashMap<String, ExpNode>();
+    private static Map<ExpNode, List<ExpNode>> reusesOf =
+        new LinkedHashMap<ExpNode, List<ExpNode>>();
+
+    // **********************************************************************
+    // analyze
+    //    given:  the statement lists of a function body and the offset of
+    //            its first temporary (the first slot below the locals)
+    //    do:     find the expressions of each block to save and reuse
+    //    return: the number of bytes of temporaries needed
+    // **********************************************************************
+    public static int analyze(List<StmtListNode> lists, int base) {
+        int size = 0;
+        for (StmtListNode list : lists) {
+            List<ASTnode> stmts = new LinkedList<ASTnode>();
+            list.addKids(stmts);
+            for (ASTnode stmt : stmts) {
+                if (stmt instanceof WhileStmtNode) {
+                    size = Math.max(size, endBlock(base));
+                }
+                else if (stmt instanceof IfStmtNode || stmt instanceof IfElseStmtNode) {
+                    walk(firstKid(stmt), true);     // the condition
+                    size = Math.max(size, endBlock(base));
+                }
+                else
+                    walk(stmt, true);
+            }
+            size = Math.max(size, endBlock(base));
+        }
+        return size;
+    }
+
+    // give the temporaries to the expressions of the block just walked and
+    // start a new one; return the number of bytes used
+    private static int endBlock(int base) {
+        int size = 0;
+        for (Map.Entry<ExpNode, List<ExpNode>> entry : reusesOf.entrySet()) {
+            if (entry.getValue().isEmpty())
+                continue;
+            saves.put(entry.getKey(), base - size);
+            for (ExpNode reuse : entry.getValue())
+                reuses.put(reuse, base - size);
+            size += 4;
+        }
+        available.clear();
+        reusesOf.clear();
+        return size;
+    }
+
+    // walk node in evaluation order; only expressions evaluated whenever
+    // the block is (counted) are made available or reused
+    private static void walk(ASTnode node, boolean counted) {
+        if (node instanceof ArithmeticExpNode && isPure(node)) {
+            if (!counted)
+                return;
+            String text = text(node);
+            ExpNode first = available.get(text);
+            if (first != null) {
+                reusesOf.get(first).add((ExpNode)node);
+                return;
+            }
+            List<ASTnode> kids = new LinkedList<ASTnode>();
+            node.addKids(kids);
+            for (ASTnode kid : kids)
+                walk(kid, counted);
+            available.put(text, (ExpNode)node);
+            reusesOf.put((ExpNode)node, new LinkedList<ExpNode>());
+            return;
+        }
+
+        List<ASTnode> kids = new LinkedList<ASTnode>();
+        node.addKids(kids);
+        boolean logical = node instanceof LogicalExpNode;
+        for (ASTnode kid : kids) {
+            walk(kid, counted);
+            if (logical)
+                counted = false;
+        }
+
+        // the variable changed is the first kid of each of these
+        if (node instanceof AssignNode || node instanceof PostIncStmtNode ||
+            node instanceof PostDecStmtNode || node instanceof ReadStmtNode) {
+            ASTnode target = firstKid(node);
+            if (target instanceof IdNode)
+                kill(((IdNode)target).sym(), false);
+        }
+        else if (node instanceof CallExpNode)
+            kill(null, true);
+    }
+
+    // make the expressions using sym (or, if globals, any global) no
+    // longer available
+    private static void kill(SemSym sym, boolean globals) {
+        Iterator<ExpNode> it = available.values().iterator();
+        while (it.hasNext()) {
+            List<IdNode> ids = new LinkedList<IdNode>();
+            it.next().collect(IdNode.class, ids);
+            for (IdNode id : ids) {
+                if (id.sym() == sym || (globals && id.sym().isGlobal())) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    // true if node is made of nothing but arithmetic, variables and
+    // literals
+    private static boolean isPure(ASTnode node) {
+        List<ASTnode> nodes = new LinkedList<ASTnode>();
+        node.collect(ASTnode.class, nodes);
+        for (ASTnode n : nodes) {
+            if (!(n instanceof ArithmeticExpNode || n instanceof UnaryMinusNode ||
+                  n instanceof IdNode || n instanceof IntLitNode))
+                return false;
+        }
+        return true;
+    }
+
+    private static String text(ASTnode node) {
+        StringWriter text = new StringWriter();
+        node.unparse(new PrintWriter(text), 0);
+        return text.toString();
+    }
+
+    private static ASTnode firstKid(ASTnode node) {
+        List<ASTnode> kids = new LinkedList<ASTnode>();
+        node.addKids(kids);
+        return kids.get(0);
+    }
+
+    // **********************************************************************
+    // savedAt, reusedFrom
+    //    given:  an expression
+    //    return: the frame offset of the temporary it saves its value in,
+    //            or loads it from, or null if it does not
+    // **********************************************************************
+    public static Integer savedAt(ExpNode exp) {
+        Integer offset = saves.get(exp);
+        return offset == null ? null : Codegen.frameDelta + offset;
+    }
+
+    public static Integer reusedFrom(ExpNode exp) {
+        Integer offset = reuses.get(exp);
+        return offset == null ? null : Codegen.frameDelta + offset;
+    }
+
+    // **********************************************************************
+    // genReuse
+    //    given:  an expression about to be generated
+    //    do:     if it is a reuse, push its value from its temporary
+    //    return: true if it was
+    // **********************************************************************
+    public static boolean genReuse(ExpNode exp) {
+        Integer offset = reuses.get(exp);
+        if (offset == null)
+            return false;
+        Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP,
+                                Codegen.frameDelta + offset, "CSE reuse");
+        Codegen.genPush(Codegen.T0);
+        return true;
+    }
+
+    // **********************************************************************
+    // genSave
+    //    given:  an expression whose value has just been pushed
+    //    do:     if it is reused later, copy the value to its temporary
+    // **********************************************************************
+    public static void genSave(ExpNode exp) {
+        Integer offset = saves.get(exp);
+        if (offset == null)
+            return;
+        Codegen.genPeek(Codegen.T0, 1);
+        Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP,
+                                Codegen.frameDelta + offset, "CSE save");
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.*;
+import java.util.concurrent.Callable;
+
+// **********************************************************************
+// The Interp class runs a C Flat program straight from its analyzed AST,
+// without generating code.
+//
+// Before it runs, every expression and statement is compiled (by the
+// closure methods in ast.java) into a Java closure that does its work
+// and calls the closures of its children directly, so nothing is looked
+// up or dispatched on node type while the program runs.
+//
+// The variables of a function call live in an int array, its frame: the
+// variable whose SemSym offset is off (0, -4, -8, ... as laid out for
+// the MIPS code by nameAnalysis) is in slot -off/4, and the value being
+// returned goes in the slot after the last one.  Globals are in slots
+// of one more array.  Output and input go through JvmRuntime.
+// **********************************************************************
+
+public class Interp {
+    // an expression: its value in the given frame
+    public interface Exp {
+        int eval(int[] frame);
+    }
+
+    // a statement: run it in the given frame; true if it executed a
+    // return (so the rest of the function is skipped)
+    public interface Stmt {
+        boolean exec(int[] frame);
+    }
+
+    // a function: the frames of its calls have size + 1 slots, its
+    // formals are in slots formals[0], formals[1], ..., and it returns
+    // the value left in slot size
+    public static class Function {
+        public int size;
+        public int[] formals;
+        public Stmt body;
+    }
+
+    // the globals, allocated when the program starts
+    public static int[] globals = null;
+
+    // the symbol of main
+    public static SemSym main = null;
+
+    private static Map<SemSym, Integer> globalSlots = new HashMap<SemSym, Integer>();
+    private static Map<SemSym, Function> functions = new HashMap<SemSym, Function>();
+
+    // frame slot of the return value of the function being compiled
+    public static int retSlot = 0;
+
+    // **********************************************************************
+    // addGlobal
+    //    given:  the symbol of a global
+    //    do:     give it the next slot of globals
+    // **********************************************************************
+    public static void addGlobal(SemSym sym) {
+        globalSlots.put(sym, globalSlots.size());
+    }
+
+    // **********************************************************************
+    // function
+    //    given:  the symbol of a function
+    //    return: its Function, whose fields are filled in when the
+    //            function itself is compiled
+    // **********************************************************************
+    public static Function function(SemSym sym) {
+        Function fn = functions.get(sym);
+        if (fn == null) {
+            fn = new Function();
+            functions.put(sym, fn);
+        }
+        return fn;
+    }
+
+    // **********************************************************************
+    // slot
+    //    given:  the symbol of a local or formal, or of a global
+    //    return: its slot in the frame, or in globals
+    // **********************************************************************
+    public static int slot(SemSym sym) {
+        if (sym.isGlobal())
+            return globalSlots.get(sym);
+        return -sym.getOffset() / 4;
+    }
+
+    // **********************************************************************
+    // call
+    //    given:  a function and the values of its actuals
+    //    do:     run it in a new frame and return its value
+    // **********************************************************************
+    public static int call(Function fn, int[] actuals) {
+        int[] frame = new int[fn.size + 1];
+        for (int k = 0; k < actuals.length; k++)
+            frame[fn.formals[k]] = actuals[k];
+        fn.body.exec(frame);
+        return frame[fn.size];
+    }
+
+    // **********************************************************************
+    // run
+    //    given:  the main function, compiled
+    //    do:     call it; return false if the program fails
+    // **********************************************************************
+    public static boolean run(final Function main) {
+        globals = new int[globalSlots.size()];
+        return JvmRuntime.run("main", new Callable<Object>() {
+            public Object call() {
+                Interp.call(main, new int[0]);
+                JvmRuntime.flush();
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,508 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The JvmGen class builds a JVM class file for a C Flat program, the way
+// Codegen writes MIPS assembly: globals become static int fields and
+// every function a static method of one class, and the main function is
+// the class's main(String[]).  Output and input go through JvmRuntime.
+//
+// The class file is version 49, so the JVM verifies it by type inference
+// and no StackMapTable is needed; the operand stack depth is tracked as
+// code is generated to find each method's max_stack.
+//
+// The operations are:
+//     begin / finish              start a class, and return its bytes
+//     addField                    add a static int field
+//     beginMethod / endMethod     bracket the code of a static method
+//     generate                    an instruction with no operand or a
+//                                 local variable or byte/short operand
+//     genIinc                     add a constant to a local variable
+//     genInt / genString          push a constant
+//     genField                    get or put one of the class's fields
+//     genCall                     invokestatic
+//     genJump / genLabel          branches and their targets
+// and a method nextLabel to create and return a new label.
+// **********************************************************************
+
+public class JvmGen {
+    // opcodes used by the generator
+    public static final int ACONST_NULL = 1;
+    public static final int ICONST_0 = 3;
+    public static final int ICONST_1 = 4;
+    public static final int BIPUSH = 16;
+    public static final int SIPUSH = 17;
+    public static final int LDC = 18;
+    public static final int LDC_W = 19;
+    public static final int ILOAD = 21;
+    public static final int ISTORE = 54;
+    public static final int POP = 87;
+    public static final int DUP = 89;
+    public static final int IADD = 96;
+    public static final int ISUB = 100;
+    public static final int IMUL = 104;
+    public static final int IDIV = 108;
+    public static final int INEG = 116;
+    public static final int IXOR = 130;
+    public static final int IINC = 132;
+    public static final int IFEQ = 153;
+    public static final int IFNE = 154;
+    public static final int IF_ICMPEQ = 159;
+    public static final int IF_ICMPNE = 160;
+    public static final int IF_ICMPLT = 161;
+    public static final int IF_ICMPGE = 162;
+    public static final int IF_ICMPGT = 163;
+    public static final int IF_ICMPLE = 164;
+    public static final int IF_ACMPEQ = 165;
+    public static final int IF_ACMPNE = 166;
+    public static final int GOTO = 167;
+    public static final int IRETURN = 172;
+    public static final int RETURN = 177;
+    public static final int GETSTATIC = 178;
+    public static final int PUTSTATIC = 179;
+    public static final int INVOKESTATIC = 184;
+    public static final int WIDE = 196;
+
+    // the class holding the I/O routines the generated code calls
+    public static final String RUNTIME = "JvmRuntime";
+
+    // the class being generated
+    public static String className = null;
+    private static ByteArrayOutputStream pool;
+    private static DataOutputStream poolOut;
+    private static int poolCount;
+    private static Map<String, Integer> poolIndex;
+    private static List<byte[]> fields;
+    private static List<byte[]> methods;
+
+    // the method being generated
+    private static String methodName;
+    private static String methodDesc;
+    private static ByteArrayOutputStream code;
+    private static int depth;
+    private static int maxDepth;
+    private static int maxLocals;
+    private static Map<String, Integer> labelPos;
+    private static Map<String, Integer> labelDepth;
+    private static List<Object[]> fixups;   // { branch pc, label }
+
+    // locals and formals of the method, by symbol
+    private static Map<SemSym, Integer> slots;
+
+    // for generating labels
+    private static int currLabel = 0;
+
+
+    // **********************************************************************
+    // begin
+    //    given:  the name of the class
+    //    do:     start generating it
+    // **********************************************************************
+    public static void begin(String name) {
+        className = name;
+        pool = new ByteArrayOutputStream();
+        poolOut = new DataOutputStream(pool);
+        poolCount = 1;
+        poolIndex = new HashMap<String, Integer>();
+        fields = new ArrayList<byte[]>();
+        methods = new ArrayList<byte[]>();
+    }
+
+    // **********************************************************************
+    // finish
+    //    return the bytes of the class file
+    // **********************************************************************
+    public static byte[] finish() {
+        try {
+            int thisClass = classRef(className);
+            int superClass = classRef("java/lang/Object");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);                  // minor version
+            out.writeShort(49);                 // major version
+            out.writeShort(poolCount);
+            poolOut.flush();
+            pool.writeTo(out);
+            out.writeShort(0x0021);             // public super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);                  // interfaces
+            out.writeShort(fields.size());
+            for (byte[] f : fields)
+                out.write(f);
+            out.writeShort(methods.size());
+            for (byte[] m : methods)
+                out.write(m);
+            out.writeShort(0);                  // attributes
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // **********************************************************************
+    // addField
+    //    given:  a global's name
+    //    do:     add a public static int field for it
+    // **********************************************************************
+    public static void addField(String name) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(0x0009);             // public static
+            out.writeShort(utf8(name));
+            out.writeShort(utf8("I"));
+            out.writeShort(0);
+            out.flush();
+            fields.add(bytes.toByteArray());
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // **********************************************************************
+    // beginMethod
+    //    given:  name and descriptor of a static method
+    //    do:     start generating its code, with no locals allocated
+    // **********************************************************************
+    public static void beginMethod(String name, String desc) {
+        methodName = name;
+        methodDesc = desc;
+        code = new ByteArrayOutputStream();
+        depth = 0;
+        maxDepth = 0;
+        maxLocals = 0;
+        labelPos = new HashMap<String, Integer>();
+        labelDepth = new HashMap<String, Integer>();
+        fixups = new ArrayList<Object[]>();
+        slots = new HashMap<SemSym, Integer>();
+    }
+
+    // **********************************************************************
+    // endMethod
+    //    do:     fill in the branch offsets and add the method to the class
+    // **********************************************************************
+    public static void endMethod() {
+        byte[] body = code.toByteArray();
+        for (Object[] fix : fixups) {
+            int at = (Integer)fix[0];
+            Integer target = labelPos.get(fix[1]);
+            if (target == null)
+                throw new RuntimeException("undefined label " + fix[1]);
+            int offset = target - at;
+            if (offset != (short)offset)
+                throw new RuntimeException("function " + methodName +
+                                           " is too large for the JVM back end");
+            body[at+1] = (byte)(offset >> 8);
+            body[at+2] = (byte)offset;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(0x0009);             // public static
+            out.writeShort(utf8(methodName));
+            out.writeShort(utf8(methodDesc));
+            out.writeShort(1);                  // attributes: Code
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + body.length);
+            out.writeShort(maxDepth);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0);                  // exception table
+            out.writeShort(0);                  // attributes
+            out.flush();
+            methods.add(bytes.toByteArray());
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // **********************************************************************
+    // newLocal
+    //    given:  a formal or local variable
+    //    do:     give it the next local variable slot and return it
+    // local
+    //    return the slot of a variable, or -1 if it is not in one
+    // **********************************************************************
+    public static int newLocal(SemSym sym) {
+        int slot = maxLocals++;
+        if (sym != null)
+            slots.put(sym, slot);
+        return slot;
+    }
+
+    public static int local(SemSym sym) {
+        Integer slot = slots.get(sym);
+        return slot == null ? -1 : slot;
+    }
+
+
+    // **********************************************************************
+    // **********************************************************************
+    // GENERATE OPERATIONS
+    // **********************************************************************
+    // **********************************************************************
+
+    // **********************************************************************
+    // generate
+    //    given:  op code, and for ILOAD and ISTORE a local variable slot
+    //            or for BIPUSH and SIPUSH a value
+    //    do:     append the instruction
+    // **********************************************************************
+    public static void generate(int opcode) {
+        emit(opcode);
+        switch (opcode) {
+            case ACONST_NULL: case ICONST_0: case ICONST_1: case DUP:
+                adjust(1);
+                break;
+            case POP: case IADD: case ISUB: case IMUL: case IDIV: case IXOR:
+                adjust(-1);
+                break;
+            case IRETURN:
+                adjust(-1);
+                depth = 0;      // what follows is reached by a jump, if at all
+                break;
+            case RETURN:
+                depth = 0;
+                break;
+        }
+    }
+
+    public static void generate(int opcode, int arg) {
+        switch (opcode) {
+            case ILOAD:
+            case ISTORE:
+                if (arg > 255) {
+                    emit(WIDE);
+                    emit(opcode);
+                    emit2(arg);
+                } else {
+                    emit(opcode);
+                    emit(arg);
+                }
+                adjust(opcode == ILOAD ? 1 : -1);
+                break;
+            case BIPUSH:
+                emit(opcode);
+                emit(arg);
+                adjust(1);
+                break;
+            case SIPUSH:
+                emit(opcode);
+                emit2(arg);
+                adjust(1);
+                break;
+            default:
+                throw new IllegalArgumentException("opcode " + opcode);
+        }
+    }
+
+    // **********************************************************************
+    // genIinc
+    //    given:  a local variable slot and an amount
+    //    do:     add the amount to the variable
+    // **********************************************************************
+    public static void genIinc(int slot, int amount) {
+        if (slot > 255 || amount != (byte)amount) {
+            emit(WIDE);
+            emit(IINC);
+            emit2(slot);
+            emit2(amount);
+        } else {
+            emit(IINC);
+            emit(slot);
+            emit(amount);
+        }
+    }
+
+    // **********************************************************************
+    // genInt / genString
+    //    push an int or a String constant, with the shortest instruction
+    // **********************************************************************
+    public static void genInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(ICONST_0 + value);
+            adjust(1);
+        } else if (value == (byte)value) {
+            generate(BIPUSH, value);
+        } else if (value == (short)value) {
+            generate(SIPUSH, value);
+        } else {
+            genLdc(constant("I:" + value, 3, value, null));
+        }
+    }
+
+    public static void genString(String value) {
+        genLdc(constant("S:" + value, 8, 0, value));
+    }
+
+    private static void genLdc(int index) {
+        if (index > 255) {
+            emit(LDC_W);
+            emit2(index);
+        } else {
+            emit(LDC);
+            emit(index);
+        }
+        adjust(1);
+    }
+
+    // **********************************************************************
+    // genField
+    //    given:  GETSTATIC or PUTSTATIC, and the name of a global
+    //    do:     load or store the int field of the class
+    // **********************************************************************
+    public static void genField(int opcode, String name) {
+        emit(opcode);
+        emit2(memberRef(9, className, name, "I"));
+        adjust(opcode == GETSTATIC ? 1 : -1);
+    }
+
+    // **********************************************************************
+    // genCall
+    //    given:  class, name and descriptor of a static method
+    //    do:     call it; its arguments are on the operand stack
+    // **********************************************************************
+    public static void genCall(String owner, String name, String desc) {
+        emit(INVOKESTATIC);
+        emit2(memberRef(10, owner, name, desc));
+        int numArgs = 0;
+        for (int k = 1; desc.charAt(k) != ')'; k++) {
+            if (desc.charAt(k) == 'L')
+                k = desc.indexOf(';', k);
+            if (desc.charAt(k) != '[')
+                numArgs++;
+        }
+        adjust(-numArgs + (desc.endsWith(")V") ? 0 : 1));
+    }
+
+    // **********************************************************************
+    // genJump
+    //    given:  a branch op code and a label
+    //    do:     append the branch, to be filled in by endMethod
+    // **********************************************************************
+    public static void genJump(int opcode, String label) {
+        if (opcode == IFEQ || opcode == IFNE)
+            adjust(-1);
+        else if (opcode != GOTO)
+            adjust(-2);
+        labelDepth.put(label, depth);
+        fixups.add(new Object[] { code.size(), label });
+        emit(opcode);
+        emit2(0);
+        if (opcode == GOTO)
+            depth = 0;
+    }
+
+    // **********************************************************************
+    // genLabel
+    //    given:  a label
+    //    do:     mark the current position with it
+    // **********************************************************************
+    public static void genLabel(String label) {
+        labelPos.put(label, code.size());
+        Integer d = labelDepth.get(label);
+        if (d != null)
+            depth = d;
+    }
+
+    // **********************************************************************
+    // nextLabel
+    //    return a new label
+    // **********************************************************************
+    public static String nextLabel() {
+        return "L" + currLabel++;
+    }
+
+
+    // **********************************************************************
+    // code buffer and constant pool
+    // **********************************************************************
+
+    private static void emit(int b) {
+        code.write(b);
+    }
+
+    private static void emit2(int s) {
+        code.write(s >> 8);
+        code.write(s);
+    }
+
+    private static void adjust(int delta) {
+        depth += delta;
+        if (depth > maxDepth)
+            maxDepth = depth;
+    }
+
+    private static int utf8(String s) {
+        return constant("U:" + s, 1, 0, s);
+    }
+
+    private static int classRef(String name) {
+        return constant("C:" + name, 7, utf8(name), null);
+    }
+
+    private static int memberRef(int tag, String owner, String name, String desc) {
+        String key = tag + ":" + owner + "." + name + desc;
+        Integer index = poolIndex.get(key);
+        if (index != null)
+            return index;
+        int cls = classRef(owner);
+        int nt = nameAndType(name, desc);
+        try {
+            poolOut.writeByte(tag);
+            poolOut.writeShort(cls);
+            poolOut.writeShort(nt);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private static int nameAndType(String name, String desc) {
+        String key = "N:" + name + desc;
+        Integer index = poolIndex.get(key);
+        if (index != null)
+            return index;
+        int n = utf8(name);
+        int d = utf8(desc);
+        try {
+            poolOut.writeByte(12);
+            poolOut.writeShort(n);
+            poolOut.writeShort(d);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // a one-slot constant: Utf8 (str), Integer (value), Class (value is
+    // the name's index) or String (str, whose Utf8 is added first)
+    private static int constant(String key, int tag, int value, String str) {
+        Integer index = poolIndex.get(key);
+        if (index != null)
+            return index;
+        if (tag == 8)
+            value = utf8(str);
+        try {
+            poolOut.writeByte(tag);
+            if (tag == 1)
+                poolOut.writeUTF(str);
+            else if (tag == 3)
+                poolOut.writeInt(value);
+            else
+                poolOut.writeShort(value);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.concurrent.Callable;
+
+// **********************************************************************
+// The JvmRuntime class holds the routines that classes generated by
+// JvmGen (and the Interp interpreter) call for cout and cin, and methods
+// to run a program in the compiler's own JVM.  Output is buffered and
+// flushed before each read, when main returns, and when the JVM exits.
+// **********************************************************************
+
+public class JvmRuntime {
+    private static PrintStream out = new PrintStream(
+        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false);
+    private static StreamTokenizer in = null;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                out.flush();
+            }
+        });
+    }
+
+    public static void print(int value) {
+        out.print(value);
+    }
+
+    public static void print(String value) {
+        out.print(value);
+    }
+
+    // read an int as the simulator's read_int does: a token that is not
+    // a number (or the end of the input) reads as 0
+    public static int readInt() {
+        out.flush();
+        if (in == null) {
+            in = new StreamTokenizer(new BufferedReader(new InputStreamReader(System.in)));
+            in.resetSyntax();
+            in.wordChars('!', '~');
+            in.whitespaceChars(0, ' ');
+        }
+        try {
+            if (in.nextToken() == StreamTokenizer.TT_WORD)
+                return Integer.parseInt(in.sval);
+        } catch (IOException ex) {
+        } catch (NumberFormatException ex) {
+        }
+        return 0;
+    }
+
+    public static int readBool() {
+        return readInt() != 0 ? 1 : 0;
+    }
+
+    public static void flush() {
+        out.flush();
+    }
+
+    // **********************************************************************
+    // run
+    //    given:  the name and bytes of a class generated by JvmGen
+    //    do:     load it and call its main; return false if it throws
+    // **********************************************************************
+    public static boolean run(final String name, final byte[] bytes) {
+        final ClassLoader loader = new ClassLoader(JvmRuntime.class.getClassLoader()) {
+            protected Class<?> findClass(String n) throws ClassNotFoundException {
+                if (!n.equals(name))
+                    throw new ClassNotFoundException(n);
+                return defineClass(n, bytes, 0, bytes.length);
+            }
+        };
+        return run(name, new Callable<Object>() {
+            public Object call() throws Exception {
+                Method main = loader.loadClass(name).getMethod("main", String[].class);
+                return main.invoke(null, (Object)new String[0]);
+            }
+        });
+    }
+
+    // **********************************************************************
+    // run
+    //    given:  a name for the thread and the program's main
+    //    do:     call main on a thread with a stack as deep as the
+    //            simulator's memory allows the MIPS code; return false
+    //            (after reporting it) if it throws
+    // **********************************************************************
+    public static boolean run(String name, final Callable<?> main) {
+        final boolean[] ok = new boolean[1];
+        Runnable body = new Runnable() {
+            public void run() {
+                try {
+                    main.call();
+                    ok[0] = true;
+                } catch (InvocationTargetException ex) {
+                    out.flush();
+                    System.err.println("runtime error: " + ex.getCause());
+                } catch (Throwable ex) {
+                    out.flush();
+                    System.err.println("runtime error: " + ex);
+                }
+            }
+        };
+
+        System.out.flush();
+        Thread thread = new Thread(null, body, name, STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            return false;
+        }
+        return ok[0];
+    }
+
+    private static final long STACK_SIZE = 512L << 20;
+}
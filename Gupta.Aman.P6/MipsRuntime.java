@@ -0,0 +1,375 @@
+// **********************************************************************
+// The MipsRuntime class writes the routines that the MIPS code generated
+// with -bufout calls for cout, so that a program's output is collected in
+// a buffer and written with one print_string syscall when the buffer
+// fills, before each cin and when main exits, instead of one syscall for
+// every value.  Output that is still in the buffer when the program
+// traps is lost.
+//
+// With -bufin, cin calls a routine too: the input is read a block at a
+// time with the read syscall into another buffer, and the ints are
+// parsed from there the way read_int does, a token (a run of characters
+// other than white space) that is not a number reading as 0, as does
+// the end of the input.  Bytes outside ASCII count as white space.  The
+// buffered output is then written only when a block is read, not on
+// every cin.
+//
+// The routines are written once, after the functions of the program,
+// and only if some code calls them:
+//     WRITE_INT   -- append the int in A0, in decimal
+//     WRITE_STR   -- append the string whose address is in A0
+//     FLUSH       -- write out what the buffer holds
+//     READ_INT    -- read an int into V0
+// They are called with jal, so a function that calls them has to save
+// RA (see FnDeclNode.isLeaf).  Besides RA they only change T0, T1, V0,
+// V1 and (for the writes) A0: the code generated from the AST keeps
+// nothing else across a statement in those, and neither does the code
+// generated from a function's CFG, whose registers are $t2-$t9 and
+// $s0-$s7.
+// **********************************************************************
+
+public class MipsRuntime {
+    public static final String WRITE_INT = ".Lwrite_int";
+    public static final String WRITE_STR = ".Lwrite_str";
+    public static final String FLUSH = ".Lflush";
+    public static final String READ_INT = ".Lread_int";
+
+    // the buffer (with a byte more for the 0 print_string stops at), and
+    // the word holding the address of its first free byte
+    private static final String BUFFER = ".Lout";
+    private static final String NEXT = ".Loutp";
+    private static final int SIZE = 4096;
+
+    // where WRITE_INT puts the digits of a number, last one first
+    private static final String DIGITS = ".Ldigits";
+
+    // the most digits an int takes ("-2147483648")
+    private static final int MAX_DIGITS = 10;
+
+    // the input buffer, with a 0 after the bytes read into it (so only
+    // a 0 needs a check for the end), the words holding the address of
+    // the next byte and of that 0, and room for the registers the read
+    // syscall changes
+    private static final String IN_BUFFER = ".Lin";
+    private static final String IN_NEXT = ".Linp";
+    private static final String IN_END = ".Linend";
+    private static final String IN_SAVE = ".Linsave";
+
+    // reads the next block of input (see genFill)
+    private static final String FILL = ".Lfill";
+
+    // the least (negated) value another digit can be added to
+    private static final int MIN_TENTH = Integer.MIN_VALUE / 10;
+
+    // whether any code calls the output and the input routines
+    private static boolean used = false;
+    private static boolean usedIn = false;
+
+    // **********************************************************************
+    // genWrite
+    //    given:  whether the value in A0 is a string's address (or an int)
+    //    do:     generate a call appending it to the buffer
+    // **********************************************************************
+    public static void genWrite(boolean isString) {
+        used = true;
+        Codegen.generateWithComment("jal", "Write end",
+                                    isString ? WRITE_STR : WRITE_INT);
+    }
+
+    // **********************************************************************
+    // genFlush
+    //    do:     with -bufout, generate a call writing out the buffer
+    // **********************************************************************
+    public static void genFlush() {
+        if (!Codegen.bufferOut)
+            return;
+        used = true;
+        Codegen.generateWithComment("jal", "Flush output", FLUSH);
+    }
+
+    // **********************************************************************
+    // genRead
+    //    do:     generate a call reading an int into V0
+    // **********************************************************************
+    public static void genRead() {
+        usedIn = true;
+        if (Codegen.bufferOut)
+            used = true;            // FILL writes out the output first
+        Codegen.generateWithComment("jal", "Read start", READ_INT);
+    }
+
+    // **********************************************************************
+    // gen
+    //    do:     write the routines and their data, if they are called
+    // **********************************************************************
+    public static void gen() {
+        if (usedIn)
+            genReadInt();
+        if (!used)
+            return;
+
+        Codegen.generate(".data");
+        Codegen.generate(".align 2");
+        Codegen.generateLabeled(BUFFER, ".space " + (SIZE + 1), "");
+        Codegen.generate(".align 2");
+        Codegen.generateLabeled(NEXT, ".word " + BUFFER, "");
+        Codegen.generateLabeled(DIGITS, ".space " + (MAX_DIGITS + 2), "");
+        Codegen.generate(".text");
+
+        genWriteInt();
+        genWriteStr();
+
+        Codegen.genLabel(FLUSH, "write out the buffer");
+        String done = Codegen.nextLabel();
+        Codegen.generate("lw", Codegen.T0, NEXT);
+        Codegen.generate("la", Codegen.T1, BUFFER);
+        Codegen.generate("beq", Codegen.T0, Codegen.T1, done);
+        genPrintBuffer(Codegen.V1);
+        Codegen.generate("sw", Codegen.T0, NEXT);
+        Codegen.genLabel(done);
+        Codegen.generate("jr", Codegen.RA);
+        Codegen.flushBranches();
+    }
+
+    // write the int in A0: a negative one as a '-' and then its negation,
+    // taken as unsigned so that -2147483648 comes out right too
+    private static void genWriteInt() {
+        String room = Codegen.nextLabel(), digits = Codegen.nextLabel(),
+               digit = Codegen.nextLabel(), copy = Codegen.nextLabel();
+
+        Codegen.genLabel(WRITE_INT, "append the int in $a0");
+        Codegen.generate("lw", Codegen.T0, NEXT);
+        Codegen.generate("la", Codegen.V0, BUFFER + "+" + (SIZE - MAX_DIGITS - 1));
+        Codegen.generate("ble", Codegen.T0, Codegen.V0, room);
+        genPrintBuffer(Codegen.V1);
+        Codegen.genLabel(room);
+        Codegen.generate("bge", Codegen.A0, "$zero", digits);
+        Codegen.generate("li", Codegen.V0, 45);
+        Codegen.generateIndexed("sb", Codegen.V0, Codegen.T0, 0, "'-'");
+        Codegen.generate("addu", Codegen.T0, Codegen.T0, 1);
+        Codegen.generate("subu", Codegen.A0, "$zero", Codegen.A0);
+
+        // the digits go to DIGITS last one first, while T0 (kept in NEXT
+        // meanwhile) holds the reciprocal of 10: V0 = A0 / 10 and the
+        // digit is A0 - 10 * V0
+        Codegen.genLabel(digits);
+        Codegen.generate("sw", Codegen.T0, NEXT);
+        Codegen.generate("li", Codegen.T0, "0xCCCCCCCD");
+        Codegen.generate("la", Codegen.T1, DIGITS + "+" + MAX_DIGITS);
+        Codegen.genLabel(digit);
+        Codegen.generate("multu", Codegen.A0, Codegen.T0);
+        Codegen.generate("mfhi", Codegen.V0);
+        Codegen.generate("srl", Codegen.V0, Codegen.V0, 3);
+        Codegen.generate("sll", Codegen.V1, Codegen.V0, 2);
+        Codegen.generate("addu", Codegen.V1, Codegen.V1, Codegen.V0);
+        Codegen.generate("sll", Codegen.V1, Codegen.V1, 1);
+        Codegen.generate("subu", Codegen.V1, Codegen.A0, Codegen.V1);
+        Codegen.generate("addu", Codegen.V1, Codegen.V1, 48);
+        Codegen.generate("subu", Codegen.T1, Codegen.T1, 1);
+        Codegen.generateIndexed("sb", Codegen.V1, Codegen.T1, 0);
+        Codegen.generate("move", Codegen.A0, Codegen.V0);
+        Codegen.generate("bne", Codegen.A0, "$zero", digit);
+
+        Codegen.generate("lw", Codegen.T0, NEXT);
+        Codegen.generate("la", Codegen.V0, DIGITS + "+" + MAX_DIGITS);
+        Codegen.genLabel(copy);
+        Codegen.generateIndexed("lb", Codegen.V1, Codegen.T1, 0);
+        Codegen.generateIndexed("sb", Codegen.V1, Codegen.T0, 0);
+        Codegen.generate("addu", Codegen.T0, Codegen.T0, 1);
+        Codegen.generate("addu", Codegen.T1, Codegen.T1, 1);
+        Codegen.generate("bne", Codegen.T1, Codegen.V0, copy);
+        Codegen.generate("sw", Codegen.T0, NEXT);
+        Codegen.generate("jr", Codegen.RA);
+    }
+
+    // write the string at A0 a character at a time, writing out the
+    // buffer whenever it fills
+    private static void genWriteStr() {
+        String loop = Codegen.nextLabel(), done = Codegen.nextLabel();
+
+        Codegen.genLabel(WRITE_STR, "append the string at $a0");
+        Codegen.generate("lw", Codegen.T0, NEXT);
+        Codegen.generate("la", Codegen.T1, BUFFER + "+" + SIZE);
+        Codegen.genLabel(loop);
+        Codegen.generateIndexed("lb", Codegen.V1, Codegen.A0, 0);
+        Codegen.generate("beq", Codegen.V1, "$zero", done);
+        Codegen.generate("addu", Codegen.A0, Codegen.A0, 1);
+        Codegen.generateIndexed("sb", Codegen.V1, Codegen.T0, 0);
+        Codegen.generate("addu", Codegen.T0, Codegen.T0, 1);
+        Codegen.generate("bne", Codegen.T0, Codegen.T1, loop);
+        genPrintBuffer(Codegen.T1);
+        Codegen.generate("la", Codegen.T1, BUFFER + "+" + SIZE);
+        Codegen.generate("b", loop);
+        Codegen.genLabel(done);
+        Codegen.generate("sw", Codegen.T0, NEXT);
+        Codegen.generate("jr", Codegen.RA);
+    }
+
+    // write out the buffer, whose first free byte is at T0, keeping A0
+    // in keep meanwhile; T0 is left at the start of the buffer
+    private static void genPrintBuffer(String keep) {
+        Codegen.generateIndexed("sb", "$zero", Codegen.T0, 0);
+        Codegen.generate("move", keep, Codegen.A0);
+        Codegen.generate("la", Codegen.A0, BUFFER);
+        Codegen.generate("li", Codegen.V0, 4);
+        Codegen.generate("syscall");
+        Codegen.generate("move", Codegen.A0, keep);
+        Codegen.generate("la", Codegen.T0, BUFFER);
+    }
+
+    // read an int into V0: skip white space, then parse the token that
+    // follows, in T0 as the byte to look at and V1 as the byte there
+    private static void genReadInt() {
+        Codegen.generate(".data");
+        Codegen.generate(".align 2");
+        Codegen.generateLabeled(IN_BUFFER, ".space " + (SIZE + 1), "");
+        Codegen.generate(".align 2");
+        Codegen.generateLabeled(IN_NEXT, ".word " + IN_BUFFER, "");
+        Codegen.generateLabeled(IN_END, ".word " + IN_BUFFER, "");
+        Codegen.generateLabeled(IN_SAVE, ".space 20", "");
+        Codegen.generate(".text");
+
+        String skip = Codegen.nextLabel(), token = Codegen.nextLabel(),
+               minus = Codegen.nextLabel(), digits = Codegen.nextLabel(),
+               bad = Codegen.nextLabel(), zero = Codegen.nextLabel(),
+               done = Codegen.nextLabel();
+
+        Codegen.genLabel(READ_INT, "read an int into $v0");
+        Codegen.generate("lw", Codegen.T0, IN_NEXT);
+        Codegen.genLabel(skip);
+        Codegen.generateIndexed("lb", Codegen.V1, Codegen.T0, 0);
+        genFillAt();
+        Codegen.generate("li", Codegen.V0, 0);
+        Codegen.generate("beq", Codegen.V1, "$zero", done);
+        Codegen.generate("bgt", Codegen.V1, "32", token);
+        Codegen.generate("addu", Codegen.T0, Codegen.T0, 1);
+        Codegen.generate("b", skip);
+
+        Codegen.genLabel(token);
+        Codegen.generate("beq", Codegen.V1, "45", minus);
+        Codegen.generate("bne", Codegen.V1, "43", digits);
+        Codegen.generate("addu", Codegen.T0, Codegen.T0, 1);
+        Codegen.generateIndexed("lb", Codegen.V1, Codegen.T0, 0);
+        genFillAt();
+        Codegen.genLabel(digits);
+        genDigits(false, bad, zero, done);
+        Codegen.genLabel(minus);
+        Codegen.generate("addu", Codegen.T0, Codegen.T0, 1);
+        Codegen.generateIndexed("lb", Codegen.V1, Codegen.T0, 0);
+        genFillAt();
+        genDigits(true, bad, zero, done);
+
+        // not a number: skip the rest of the token
+        Codegen.genLabel(bad);
+        Codegen.generate("addu", Codegen.T0, Codegen.T0, 1);
+        Codegen.generateIndexed("lb", Codegen.V1, Codegen.T0, 0);
+        genFillAt();
+        Codegen.generate("bgt", Codegen.V1, "32", bad);
+        Codegen.genLabel(zero);
+        Codegen.generate("li", Codegen.V0, 0);
+        Codegen.genLabel(done);
+        Codegen.generate("sw", Codegen.T0, IN_NEXT);
+        Codegen.generate("jr", Codegen.RA);
+
+        genFill();
+    }
+
+    // parse the digits of a token from V1 on into V0 and go to done; if
+    // it is not a number, go to bad with T0 still in the token or to zero
+    // with T0 past it.  The value is built up negated, as -2147483648 has
+    // no positive counterpart
+    private static void genDigits(boolean negative, String bad, String zero,
+                                  String done) {
+        String loop = Codegen.nextLabel(), end = Codegen.nextLabel();
+
+        Codegen.generate("ble", Codegen.V1, "32", zero);
+        Codegen.generate("subu", Codegen.V1, Codegen.V1, 48);
+        Codegen.generate("blt", Codegen.V1, "$zero", bad);
+        Codegen.generate("bgt", Codegen.V1, "9", bad);
+        Codegen.generate("li", Codegen.V0, 0);
+        Codegen.genLabel(loop);
+        Codegen.generate("blt", Codegen.V0, "" + MIN_TENTH, bad);
+        Codegen.generate("sll", Codegen.T1, Codegen.V0, 3);
+        Codegen.generate("sll", Codegen.V0, Codegen.V0, 1);
+        Codegen.generate("addu", Codegen.V0, Codegen.V0, Codegen.T1);
+        Codegen.generate("subu", Codegen.V0, Codegen.V0, Codegen.V1);
+        Codegen.generate("bgt", Codegen.V0, "$zero", bad);
+        Codegen.generate("addu", Codegen.T0, Codegen.T0, 1);
+        Codegen.generateIndexed("lb", Codegen.V1, Codegen.T0, 0);
+        genFillAt();
+        Codegen.generate("subu", Codegen.V1, Codegen.V1, 48);
+        Codegen.generate("blt", Codegen.V1, "$zero", end);
+        Codegen.generate("ble", Codegen.V1, "9", loop);
+        Codegen.generate("b", bad);
+
+        // below '0': the token ends if it is white space
+        Codegen.genLabel(end);
+        Codegen.generate("bgt", Codegen.V1, "" + (32 - 48), bad);
+        if (!negative) {
+            Codegen.generate("beq", Codegen.V0, "" + Integer.MIN_VALUE, zero);
+            Codegen.generate("sub", Codegen.V0, "$zero", Codegen.V0);
+        }
+        Codegen.generate("b", done);
+    }
+
+    // V1 was just loaded from T0: if it is the 0 after the input read so
+    // far, call FILL, keeping RA meanwhile
+    private static void genFillAt() {
+        String next = Codegen.nextLabel();
+        Codegen.generate("bne", Codegen.V1, "$zero", next);
+        Codegen.generate("sw", Codegen.RA, IN_SAVE + "+16");
+        Codegen.generate("jal", FILL);
+        Codegen.generate("lw", Codegen.RA, IN_SAVE + "+16");
+        Codegen.genLabel(next);
+    }
+
+    // FILL: T0 is at a 0 byte; if it is a 0 in the input, V1 is set to
+    // ' ' (white space, as read_int takes it).  Otherwise the buffered
+    // output is written out, the next block of the input is read with T0
+    // at its start and V1 set to its first byte, or to 0 at the end of
+    // the input.  V0 and the registers the syscall uses are kept.
+    private static void genFill() {
+        String zero = Codegen.nextLabel(), read = Codegen.nextLabel(),
+               got = Codegen.nextLabel(), ret = Codegen.nextLabel();
+
+        Codegen.genLabel(FILL, "read the next block of input");
+        Codegen.generate("lw", Codegen.T1, IN_END);
+        Codegen.generate("bne", Codegen.T0, Codegen.T1, zero);
+        Codegen.generate("sw", Codegen.V0, IN_SAVE);
+        Codegen.generate("sw", Codegen.A0, IN_SAVE + "+4");
+        Codegen.generate("sw", Codegen.A1, IN_SAVE + "+8");
+        Codegen.generate("sw", Codegen.A2, IN_SAVE + "+12");
+        if (Codegen.bufferOut) {
+            Codegen.generate("lw", Codegen.T0, NEXT);
+            Codegen.generate("la", Codegen.T1, BUFFER);
+            Codegen.generate("beq", Codegen.T0, Codegen.T1, read);
+            genPrintBuffer(Codegen.V1);
+            Codegen.generate("sw", Codegen.T0, NEXT);
+            Codegen.genLabel(read);
+        }
+        Codegen.generate("li", Codegen.A0, 0);
+        Codegen.generate("la", Codegen.A1, IN_BUFFER);
+        Codegen.generate("li", Codegen.A2, SIZE);
+        Codegen.generate("li", Codegen.V0, 14);
+        Codegen.generate("syscall");
+        Codegen.generate("la", Codegen.T0, IN_BUFFER);
+        Codegen.generate("bgt", Codegen.V0, "$zero", got);
+        Codegen.generate("li", Codegen.V0, 0);
+        Codegen.genLabel(got);
+        Codegen.generate("addu", Codegen.T1, Codegen.T0, Codegen.V0);
+        Codegen.generateIndexed("sb", "$zero", Codegen.T1, 0);
+        Codegen.generate("sw", Codegen.T1, IN_END);
+        Codegen.generate("lw", Codegen.V0, IN_SAVE);
+        Codegen.generate("lw", Codegen.A0, IN_SAVE + "+4");
+        Codegen.generate("lw", Codegen.A1, IN_SAVE + "+8");
+        Codegen.generate("lw", Codegen.A2, IN_SAVE + "+12");
+        Codegen.generateIndexed("lb", Codegen.V1, Codegen.T0, 0);
+        Codegen.generate("beq", Codegen.T0, Codegen.T1, ret);
+        Codegen.generate("bne", Codegen.V1, "$zero", ret);
+        Codegen.genLabel(zero);
+        Codegen.generate("li", Codegen.V1, 32);
+        Codegen.genLabel(ret);
+        Codegen.generate("jr", Codegen.RA);
+        Codegen.flushBranches();
+    }
+}
@@ -0,0 +1,996 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The MipsSim class is a small simulator for the subset of MIPS assembly
+// that Codegen emits, so that the .s files written by P6 can be run and
+// measured without an external simulator.
+//
+// Usage:
+//     java MipsSim [-profile[=file]] file.s
+//
+// The program's output goes to stdout and its input (syscall 5) is read
+// from stdin.  When the program exits, a report is written to stderr
+// with the dynamic counts:
+//     instructions  -- assembly instructions executed (pseudo-ops count 1)
+//     native        -- machine instructions after pseudo-op expansion
+//     cycles        -- native instructions plus extra latency for the
+//                      multiply/divide unit, for taken branches and for
+//                      trapping to the system on a syscall
+//     loads/stores  -- memory operations
+//     branches      -- conditional branches (and how many were taken)
+//     jumps/calls   -- unconditional jumps, jal and jr
+//     syscalls
+// With -profile, the points counted by code generated with P6 -profile
+// are reported too (see Profile), and with -profile=file their counts
+// are also written to the file.
+//
+// The program is assembled once into parallel int arrays (an opcode and
+// its operands per instruction, with labels already resolved), which are
+// then executed by a single switch loop over an int register file and a
+// flat int array holding the data segment, the heap and the stack.  Only
+// an execution count per instruction is kept while running; the report
+// is worked out from these and the static cost of each instruction.
+//
+// As in SPIM, add, addi, sub and mulo stop the program with an error on
+// signed overflow, and div on a zero divisor; addu, addiu and subu wrap.
+//
+// Supported directives: .data .text .globl .align .space .ascii .asciiz
+//                       .word
+// Supported syscalls:   1 (print_int), 4 (print_string), 5 (read_int),
+//                       10 (exit), 14 (read, from stdin only)
+// **********************************************************************
+
+public class MipsSim {
+    // layout of the simulated address space: one flat block of memory
+    // with $gp and the data near the bottom and the stack at the top
+    public static final int MEM_BASE = 0x10000000;
+    public static final int MEM_SIZE = 32 << 20;
+    public static final int GP_INIT = 0x10008000;
+    public static final int DATA_BASE = 0x10010000;
+    public static final int SP_INIT = MEM_BASE + MEM_SIZE - 4;
+    public static final int TEXT_BASE = 0x00400000;
+
+    // extra cycles charged on top of one cycle per native instruction
+    private static final int MULT_LATENCY = 4;
+    private static final int DIV_LATENCY = 35;
+    private static final int TAKEN_PENALTY = 1;
+    // a trap into the system and back (conservatively: on a real machine
+    // it is more like a thousand cycles)
+    private static final int SYSCALL_LATENCY = 300;
+
+    // opcodes of the decoded instructions; pseudo-ops that are just a
+    // special case of another (li, la, move, subu, ...) share its opcode
+    private static final int ADD = 0, SUB = 1, MUL = 2, MULO = 3, DIV = 4,
+        DIVHL = 5, MULT = 6, MFLO = 7, MFHI = 8, AND = 9, OR = 10, XOR = 11,
+        SLL = 12, SRL = 13, SRA = 14, SEQ = 15, SNE = 16, SLT = 17, SGT = 18,
+        SLE = 19, SGE = 20, LW = 21, SW = 22, BEQ = 23, BNE = 24, BLT = 25,
+        BGT = 26, BLE = 27, BGE = 28, JUMP = 29, JAL = 30, JR = 31,
+        SYSCALL = 32, HALT = 33, ADDO = 34, SUBO = 35, LB = 36, SB = 37,
+        MULTU = 38;
+
+    // register number standing for an operand that is an immediate: it
+    // is loaded with the instruction's imm before the instruction runs
+    private static final int IMM = 32;
+
+    // the decoded program: instruction k is op[k] with destination rd[k],
+    // sources rs[k] and rt[k], immediate (or offset, or address) imm[k]
+    // and branch target target[k], an index into these arrays
+    private int[] op, rd, rs, rt, imm, target;
+    private int[] lineOf;       // source line, for error messages
+    private int[] cost;         // native instructions
+    private int[] latency;      // extra cycles every time it runs
+    private long[] count;       // times executed
+    private int numInstrs;
+
+    private Map<String, Integer> textLabels = new HashMap<String, Integer>();
+    private Map<String, Integer> dataLabels = new HashMap<String, Integer>();
+    private int dataEnd = DATA_BASE;
+
+    // machine state
+    private int[] reg = new int[33];
+    private int hi, lo;
+    private int[] mem = new int[MEM_SIZE / 4];
+
+    private PrintStream out;
+    private BufferedReader reader;
+    private StreamTokenizer in;
+
+    // dynamic counts not derived from the execution counts
+    private long takenCount;
+
+    public MipsSim(Reader source, InputStream stdin, PrintStream stdout)
+        throws IOException {
+        out = stdout;
+        reader = new BufferedReader(new InputStreamReader(stdin));
+        in = new StreamTokenizer(reader);
+        in.resetSyntax();
+        in.wordChars('!', '~');
+        in.whitespaceChars(0, ' ');
+        assemble(new BufferedReader(source));
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean profile = false;
+        String profileFile = null;
+        if (args.length > 0 && args[0].equals("-profile")) {
+            profile = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        } else if (args.length > 0 && args[0].startsWith("-profile=")) {
+            profile = true;
+            profileFile = args[0].substring(9);
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length != 1) {
+            System.err.println("please supply the name of the assembly file.");
+            System.exit(-1);
+        }
+
+        FileReader inFile = null;
+        try {
+            inFile = new FileReader(args[0]);
+        } catch (FileNotFoundException ex) {
+            System.err.println("File " + args[0] + " not found.");
+            System.exit(-1);
+        }
+
+        PrintStream stdout = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false);
+        MipsSim sim = null;
+        try {
+            sim = new MipsSim(inFile, System.in, stdout);
+            sim.run();
+        } catch (SimException ex) {
+            stdout.flush();
+            System.err.println("simulation error: " + ex.getMessage());
+            System.exit(-1);
+        }
+        stdout.flush();
+        sim.report(System.err);
+
+        if (profile) {
+            List<Profile.Point> points = Profile.collect(sim.labelCounts());
+            Profile.report(points, System.err);
+            if (profileFile != null) {
+                try {
+                    PrintStream p = new PrintStream(profileFile);
+                    Profile.write(points, p);
+                    p.close();
+                } catch (FileNotFoundException ex) {
+                    System.err.println("File " + profileFile +
+                                       " could not be opened for writing.");
+                    System.exit(-1);
+                }
+            }
+        }
+    }
+
+    // **********************************************************************
+    // assembler
+    // **********************************************************************
+
+    // an instruction as written, kept until all labels are known
+    private static class Source {
+        String op;
+        String[] args;
+        int line;
+
+        Source(String op, String[] args, int line) {
+            this.op = op;
+            this.args = args;
+            this.line = line;
+        }
+    }
+
+    private void assemble(BufferedReader r) throws IOException {
+        List<Source> text = new ArrayList<Source>();
+        boolean inData = false;
+        String line;
+        int lineNum = 0;
+        while ((line = r.readLine()) != null) {
+            lineNum++;
+            line = stripComment(line).trim();
+
+            // labels (possibly followed by an instruction on the same line)
+            int colon;
+            while ((colon = labelEnd(line)) > 0) {
+                String label = line.substring(0, colon).trim();
+                if (inData) {
+                    dataLabels.put(label, dataEnd);
+                } else {
+                    textLabels.put(label, text.size());
+                }
+                line = line.substring(colon + 1).trim();
+            }
+            if (line.length() == 0)
+                continue;
+
+            String op = line;
+            String rest = "";
+            int sp = firstSpace(line);
+            if (sp > 0) {
+                op = line.substring(0, sp);
+                rest = line.substring(sp).trim();
+            }
+
+            try {
+                if (op.equals(".data")) {
+                    inData = true;
+                } else if (op.equals(".text")) {
+                    inData = false;
+                } else if (op.equals(".globl")) {
+                    // nothing to do
+                } else if (op.equals(".align")) {
+                    int align = 1 << parseInt(rest);
+                    dataEnd = (dataEnd + align - 1) & ~(align - 1);
+                } else if (op.equals(".space")) {
+                    dataEnd += parseInt(rest);
+                } else if (op.equals(".word")) {
+                    for (String w : splitArgs(rest)) {
+                        storeWord(dataEnd, isInt(w) ? parseInt(w) : labelAddr(w));
+                        dataEnd += 4;
+                    }
+                } else if (op.equals(".ascii") || op.equals(".asciiz")) {
+                    for (byte b : unescape(rest)) {
+                        storeByte(dataEnd++, b);
+                    }
+                    if (op.equals(".asciiz"))
+                        storeByte(dataEnd++, (byte)0);
+                } else if (op.startsWith(".")) {
+                    throw new SimException("unsupported directive " + op);
+                } else {
+                    text.add(new Source(op, splitArgs(rest), lineNum));
+                }
+            } catch (SimException ex) {
+                throw new SimException("line " + lineNum + ": " + ex.getMessage());
+            }
+        }
+
+        // one more slot for the HALT reached by falling off the end
+        numInstrs = text.size();
+        int n = numInstrs + 1;
+        op = new int[n];
+        rd = new int[n];
+        rs = new int[n];
+        rt = new int[n];
+        imm = new int[n];
+        target = new int[n];
+        lineOf = new int[n];
+        cost = new int[n];
+        latency = new int[n];
+        count = new long[n];
+        for (int k = 0; k < numInstrs; k++) {
+            Source s = text.get(k);
+            lineOf[k] = s.line;
+            try {
+                decode(k, s.op, s.args);
+            } catch (SimException ex) {
+                throw new SimException("line " + s.line + ": " + ex.getMessage());
+            } catch (RuntimeException ex) {
+                throw new SimException("line " + s.line + ": bad instruction " +
+                                       s.op + " (" + ex + ")");
+            }
+        }
+        op[numInstrs] = HALT;
+    }
+
+    // fill in slot k of the decoded program
+    private void decode(int k, String name, String[] a) {
+        cost[k] = 1;
+        switch (name) {
+            case "lw":
+            case "sw":
+                op[k] = name.equals("lw") ? LW : SW;
+                rd[k] = regNum(a[0]);
+                address(k, a[1]);
+                cost[k] = addrCost(a[1]);
+                break;
+            case "lb":
+            case "sb":
+                op[k] = name.equals("lb") ? LB : SB;
+                rd[k] = regNum(a[0]);
+                address(k, a[1]);
+                cost[k] = addrCost(a[1]);
+                break;
+            case "la":
+                op[k] = ADD;
+                rd[k] = regNum(a[0]);
+                address(k, a[1]);
+                rt[k] = IMM;
+                cost[k] = addrCost(a[1]);
+                break;
+            case "li":
+                op[k] = ADD;
+                rd[k] = regNum(a[0]);
+                rt[k] = IMM;
+                imm[k] = parseInt(a[1]);
+                cost[k] = 1 + (immCost(a[1]) > 0 ? 1 : 0);
+                break;
+            case "move":
+                op[k] = ADD;
+                rd[k] = regNum(a[0]);
+                rs[k] = regNum(a[1]);
+                break;
+            case "addu":
+            case "addiu":
+                alu(k, ADD, a);
+                break;
+            case "add":
+            case "addi":
+                alu(k, ADDO, a);
+                break;
+            case "subu":
+                alu(k, SUB, a);
+                break;
+            case "sub":
+                alu(k, SUBO, a);
+                break;
+            case "mul":
+                alu(k, MUL, a);
+                latency[k] = MULT_LATENCY;
+                break;
+            case "mulo":
+                alu(k, MULO, a);
+                cost[k] += 6;
+                latency[k] = MULT_LATENCY;
+                break;
+            case "div":
+                if (a.length == 2) {      // native two-operand form
+                    op[k] = DIVHL;
+                    rs[k] = regNum(a[0]);
+                    rt[k] = regNum(a[1]);
+                } else {
+                    alu(k, DIV, a);
+                    cost[k] += 3;
+                }
+                latency[k] = DIV_LATENCY;
+                break;
+            case "mult":
+                op[k] = MULT;
+                rs[k] = regNum(a[0]);
+                rt[k] = regNum(a[1]);
+                latency[k] = MULT_LATENCY;
+                break;
+            case "multu":
+                op[k] = MULTU;
+                rs[k] = regNum(a[0]);
+                rt[k] = regNum(a[1]);
+                latency[k] = MULT_LATENCY;
+                break;
+            case "mflo":
+            case "mfhi":
+                op[k] = name.equals("mflo") ? MFLO : MFHI;
+                rd[k] = regNum(a[0]);
+                break;
+            case "and":
+            case "andi":
+                alu(k, AND, a);
+                break;
+            case "or":
+            case "ori":
+                alu(k, OR, a);
+                break;
+            case "xor":
+            case "xori":
+                alu(k, XOR, a);
+                break;
+            case "sll":
+                alu(k, SLL, a);
+                cost[k] = 1;
+                break;
+            case "srl":
+                alu(k, SRL, a);
+                cost[k] = 1;
+                break;
+            case "sra":
+                alu(k, SRA, a);
+                cost[k] = 1;
+                break;
+            case "seq":
+                alu(k, SEQ, a);
+                cost[k] += 2;
+                break;
+            case "sne":
+                alu(k, SNE, a);
+                cost[k] += 1;
+                break;
+            case "slt":
+            case "slti":
+                alu(k, SLT, a);
+                break;
+            case "sgt":
+                alu(k, SGT, a);
+                cost[k] = 1 + (a[2].startsWith("$") ? 0 : 1);
+                break;
+            case "sle":
+                alu(k, SLE, a);
+                cost[k] += 2;
+                break;
+            case "sge":
+                alu(k, SGE, a);
+                cost[k] += 2;
+                break;
+            case "beq":
+                branch(k, BEQ, a);
+                break;
+            case "bne":
+                branch(k, BNE, a);
+                break;
+            case "blt":
+                branch(k, BLT, a);
+                cost[k]++;
+                break;
+            case "bgt":
+                branch(k, BGT, a);
+                cost[k]++;
+                break;
+            case "ble":
+                branch(k, BLE, a);
+                cost[k]++;
+                break;
+            case "bge":
+                branch(k, BGE, a);
+                cost[k]++;
+                break;
+            case "b":
+            case "j":
+                op[k] = JUMP;
+                target[k] = textTarget(a[0]);
+                latency[k] = TAKEN_PENALTY;
+                break;
+            case "jal":
+                op[k] = JAL;
+                target[k] = textTarget(a[0]);
+                latency[k] = TAKEN_PENALTY;
+                break;
+            case "jr":
+                op[k] = JR;
+                rs[k] = regNum(a[0]);
+                latency[k] = TAKEN_PENALTY;
+                break;
+            case "nop":
+                op[k] = ADD;              // $zero = $zero + $zero
+                break;
+            case "syscall":
+                op[k] = SYSCALL;
+                latency[k] = SYSCALL_LATENCY;
+                break;
+            default:
+                throw new SimException("unsupported instruction " + name);
+        }
+    }
+
+    // rd, rs and a register or immediate last operand
+    private void alu(int k, int code, String[] a) {
+        op[k] = code;
+        rd[k] = regNum(a[0]);
+        rs[k] = regNum(a[1]);
+        operand(k, a[2]);
+        cost[k] = 1 + immCost(a[2]);
+    }
+
+    // compare rs with a register or immediate, then maybe go to a label
+    private void branch(int k, int code, String[] a) {
+        op[k] = code;
+        rs[k] = regNum(a[0]);
+        operand(k, a[1]);
+        target[k] = textTarget(a[2]);
+        cost[k] = 1 + (a[1].startsWith("$") ? 0 : (parseInt(a[1]) == 0 ? 0 : 1));
+    }
+
+    // a register, or an immediate read through IMM
+    private void operand(int k, String s) {
+        if (s.startsWith("$")) {
+            rt[k] = regNum(s);
+        } else {
+            rt[k] = IMM;
+            imm[k] = parseInt(s);
+        }
+    }
+
+    // an address "off(reg)", "label", or "label+off" as rs + imm
+    private void address(int k, String s) {
+        int paren = s.indexOf('(');
+        if (paren >= 0) {
+            imm[k] = paren == 0 ? 0 : parseInt(s.substring(0, paren));
+            rs[k] = regNum(s.substring(paren + 1, s.length() - 1).trim());
+            return;
+        }
+        int plus = s.indexOf('+');
+        if (plus > 0)
+            imm[k] = labelAddr(s.substring(0, plus)) + parseInt(s.substring(plus + 1));
+        else
+            imm[k] = labelAddr(s);
+        rs[k] = 0;
+    }
+
+    private int labelAddr(String label) {
+        Integer a = dataLabels.get(label);
+        if (a != null)
+            return a;
+        a = textLabels.get(label);
+        if (a != null)
+            return TEXT_BASE + 4 * a;
+        throw new SimException("undefined label " + label);
+    }
+
+    private int textTarget(String label) {
+        Integer t = textLabels.get(label);
+        if (t == null)
+            throw new SimException("undefined label " + label);
+        return t;
+    }
+
+    private static String stripComment(String line) {
+        boolean inStr = false;
+        for (int k = 0; k < line.length(); k++) {
+            char c = line.charAt(k);
+            if (c == '\\' && inStr) {
+                k++;
+            } else if (c == '"') {
+                inStr = !inStr;
+            } else if (c == '#' && !inStr) {
+                return line.substring(0, k);
+            }
+        }
+        return line;
+    }
+
+    // index of the ':' ending a leading label, or -1
+    private static int labelEnd(String line) {
+        for (int k = 0; k < line.length(); k++) {
+            char c = line.charAt(k);
+            if (c == ':')
+                return k;
+            if (!(Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$'))
+                return -1;
+        }
+        return -1;
+    }
+
+    private static int firstSpace(String line) {
+        for (int k = 0; k < line.length(); k++) {
+            if (Character.isWhitespace(line.charAt(k)))
+                return k;
+        }
+        return -1;
+    }
+
+    private static String[] splitArgs(String rest) {
+        if (rest.length() == 0)
+            return new String[0];
+        String[] args = rest.split(",");
+        for (int k = 0; k < args.length; k++)
+            args[k] = args[k].trim();
+        return args;
+    }
+
+    private static byte[] unescape(String lit) {
+        String s = lit.trim();
+        if (s.length() < 2 || s.charAt(0) != '"' || s.charAt(s.length() - 1) != '"')
+            throw new SimException("bad string literal " + lit);
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        for (int k = 1; k < s.length() - 1; k++) {
+            char c = s.charAt(k);
+            if (c == '\\') {
+                c = s.charAt(++k);
+                switch (c) {
+                    case 'n': c = '\n'; break;
+                    case 't': c = '\t'; break;
+                    case '0': c = '\0'; break;
+                    default: break;     // \" \\ \' \?
+                }
+            }
+            b.write(c);
+        }
+        return b.toByteArray();
+    }
+
+    private static int parseInt(String s) {
+        s = s.trim();
+        if (s.startsWith("0x") || s.startsWith("0X"))
+            return (int)Long.parseLong(s.substring(2), 16);
+        if (s.startsWith("-0x"))
+            return -(int)Long.parseLong(s.substring(3), 16);
+        return (int)Long.parseLong(s);
+    }
+
+    private static boolean isInt(String s) {
+        if (s.length() == 0)
+            return false;
+        char c = s.charAt(0);
+        return Character.isDigit(c) || (c == '-' && s.length() > 1);
+    }
+
+    private static final String[] REG_NAMES = {
+        "zero", "at", "v0", "v1", "a0", "a1", "a2", "a3",
+        "t0", "t1", "t2", "t3", "t4", "t5", "t6", "t7",
+        "s0", "s1", "s2", "s3", "s4", "s5", "s6", "s7",
+        "t8", "t9", "k0", "k1", "gp", "sp", "fp", "ra"
+    };
+
+    private static int regNum(String s) {
+        if (!s.startsWith("$"))
+            throw new SimException("expected a register, found " + s);
+        String name = s.substring(1);
+        for (int k = 0; k < REG_NAMES.length; k++) {
+            if (REG_NAMES[k].equals(name))
+                return k;
+        }
+        if (name.equals("s8"))
+            return 30;
+        try {
+            int k = Integer.parseInt(name);
+            if (k >= 0 && k < 32)
+                return k;
+        } catch (NumberFormatException ex) { }
+        throw new SimException("unknown register " + s);
+    }
+
+    // number of machine instructions an operand costs when it is an
+    // immediate that does not fit in 16 bits or a label address
+    private static int immCost(String s) {
+        if (s.startsWith("$"))
+            return 0;
+        if (!isInt(s))
+            return 1;
+        int v = parseInt(s);
+        return (v >= -32768 && v <= 65535) ? 0 : 2;
+    }
+
+    private static int addrCost(String s) {
+        return s.indexOf('(') >= 0 ? 1 : 2;
+    }
+
+    // **********************************************************************
+    // memory (outside the run loop, which indexes mem itself)
+    // **********************************************************************
+
+    private int index(int addr) {
+        if ((addr & 3) != 0)
+            throw new SimException("unaligned word access at 0x" + Integer.toHexString(addr));
+        int k = (addr - MEM_BASE) >> 2;
+        if (k < 0 || k >= mem.length)
+            throw new SimException("bad address 0x" + Integer.toHexString(addr));
+        return k;
+    }
+
+    private void storeWord(int addr, int val) {
+        mem[index(addr)] = val;
+    }
+
+    private int loadByte(int addr) {
+        int w = mem[index(addr & ~3)];
+        return (byte)(w >>> ((addr & 3) * 8));
+    }
+
+    private void storeByte(int addr, byte b) {
+        int k = index(addr & ~3);
+        int shift = (addr & 3) * 8;
+        mem[k] = (mem[k] & ~(0xff << shift)) | ((b & 0xff) << shift);
+    }
+
+    // **********************************************************************
+    // execution
+    // **********************************************************************
+
+    public void run() throws IOException {
+        Integer start = textLabels.get("main");
+        if (start == null)
+            start = textLabels.get("__start");
+        if (start == null)
+            throw new SimException("no main label");
+
+        // locals for everything the loop touches
+        final int[] op = this.op, rd = this.rd, rs = this.rs, rt = this.rt,
+                    imm = this.imm, target = this.target;
+        final long[] count = this.count;
+        final int[] r = reg, m = mem;
+        final int base = MEM_BASE;
+        long taken = 0;
+
+        r[28] = GP_INIT;
+        r[29] = SP_INIT;
+        r[31] = TEXT_BASE + 4 * numInstrs;   // returning from main halts
+
+        int pc = start;
+        try {
+            loop:
+            while (true) {
+                count[pc]++;
+                r[IMM] = imm[pc];
+                switch (op[pc]) {
+                    case ADD:
+                        r[rd[pc]] = r[rs[pc]] + r[rt[pc]];
+                        break;
+                    case SUB:
+                        r[rd[pc]] = r[rs[pc]] - r[rt[pc]];
+                        break;
+                    case ADDO: {
+                        int x = r[rs[pc]], y = r[rt[pc]], z = x + y;
+                        if (((x ^ z) & (y ^ z)) < 0)
+                            throw new SimException("arithmetic overflow");
+                        r[rd[pc]] = z;
+                        break;
+                    }
+                    case SUBO: {
+                        int x = r[rs[pc]], y = r[rt[pc]], z = x - y;
+                        if (((x ^ y) & (x ^ z)) < 0)
+                            throw new SimException("arithmetic overflow");
+                        r[rd[pc]] = z;
+                        break;
+                    }
+                    case MUL:
+                        r[rd[pc]] = r[rs[pc]] * r[rt[pc]];
+                        break;
+                    case MULO: {
+                        long p = (long)r[rs[pc]] * (long)r[rt[pc]];
+                        if (p != (int)p)
+                            throw new SimException("arithmetic overflow");
+                        r[rd[pc]] = (int)p;
+                        break;
+                    }
+                    case DIV: {
+                        int d = r[rt[pc]];
+                        if (d == 0)
+                            throw new SimException("division by zero");
+                        r[rd[pc]] = r[rs[pc]] / d;
+                        break;
+                    }
+                    case DIVHL: {
+                        int d = r[rt[pc]];
+                        if (d != 0) {
+                            lo = r[rs[pc]] / d;
+                            hi = r[rs[pc]] % d;
+                        }
+                        break;
+                    }
+                    case MULT: {
+                        long p = (long)r[rs[pc]] * (long)r[rt[pc]];
+                        lo = (int)p;
+                        hi = (int)(p >> 32);
+                        break;
+                    }
+                    case MULTU: {
+                        long p = (r[rs[pc]] & 0xffffffffL) * (r[rt[pc]] & 0xffffffffL);
+                        lo = (int)p;
+                        hi = (int)(p >>> 32);
+                        break;
+                    }
+                    case MFLO:
+                        r[rd[pc]] = lo;
+                        break;
+                    case MFHI:
+                        r[rd[pc]] = hi;
+                        break;
+                    case AND:
+                        r[rd[pc]] = r[rs[pc]] & r[rt[pc]];
+                        break;
+                    case OR:
+                        r[rd[pc]] = r[rs[pc]] | r[rt[pc]];
+                        break;
+                    case XOR:
+                        r[rd[pc]] = r[rs[pc]] ^ r[rt[pc]];
+                        break;
+                    case SLL:
+                        r[rd[pc]] = r[rs[pc]] << r[rt[pc]];
+                        break;
+                    case SRL:
+                        r[rd[pc]] = r[rs[pc]] >>> r[rt[pc]];
+                        break;
+                    case SRA:
+                        r[rd[pc]] = r[rs[pc]] >> r[rt[pc]];
+                        break;
+                    case SEQ:
+                        r[rd[pc]] = r[rs[pc]] == r[rt[pc]] ? 1 : 0;
+                        break;
+                    case SNE:
+                        r[rd[pc]] = r[rs[pc]] != r[rt[pc]] ? 1 : 0;
+                        break;
+                    case SLT:
+                        r[rd[pc]] = r[rs[pc]] < r[rt[pc]] ? 1 : 0;
+                        break;
+                    case SGT:
+                        r[rd[pc]] = r[rs[pc]] > r[rt[pc]] ? 1 : 0;
+                        break;
+                    case SLE:
+                        r[rd[pc]] = r[rs[pc]] <= r[rt[pc]] ? 1 : 0;
+                        break;
+                    case SGE:
+                        r[rd[pc]] = r[rs[pc]] >= r[rt[pc]] ? 1 : 0;
+                        break;
+                    case LW: {
+                        int a = r[rs[pc]] + imm[pc];
+                        if ((a & 3) != 0)
+                            throw new SimException("unaligned word access at 0x" +
+                                                   Integer.toHexString(a));
+                        r[rd[pc]] = m[(a - base) >> 2];
+                        break;
+                    }
+                    case SW: {
+                        int a = r[rs[pc]] + imm[pc];
+                        if ((a & 3) != 0)
+                            throw new SimException("unaligned word access at 0x" +
+                                                   Integer.toHexString(a));
+                        m[(a - base) >> 2] = r[rd[pc]];
+                        break;
+                    }
+                    case LB: {
+                        int a = r[rs[pc]] + imm[pc];
+                        r[rd[pc]] = (byte)(m[(a - base) >> 2] >>> ((a & 3) * 8));
+                        break;
+                    }
+                    case SB: {
+                        int a = r[rs[pc]] + imm[pc];
+                        int k = (a - base) >> 2, shift = (a & 3) * 8;
+                        m[k] = (m[k] & ~(0xff << shift)) | ((r[rd[pc]] & 0xff) << shift);
+                        break;
+                    }
+                    case BEQ:
+                        if (r[rs[pc]] == r[rt[pc]]) {
+                            taken++;
+                            pc = target[pc];
+                            continue loop;
+                        }
+                        break;
+                    case BNE:
+                        if (r[rs[pc]] != r[rt[pc]]) {
+                            taken++;
+                            pc = target[pc];
+                            continue loop;
+                        }
+                        break;
+                    case BLT:
+                        if (r[rs[pc]] < r[rt[pc]]) {
+                            taken++;
+                            pc = target[pc];
+                            continue loop;
+                        }
+                        break;
+                    case BGT:
+                        if (r[rs[pc]] > r[rt[pc]]) {
+                            taken++;
+                            pc = target[pc];
+                            continue loop;
+                        }
+                        break;
+                    case BLE:
+                        if (r[rs[pc]] <= r[rt[pc]]) {
+                            taken++;
+                            pc = target[pc];
+                            continue loop;
+                        }
+                        break;
+                    case BGE:
+                        if (r[rs[pc]] >= r[rt[pc]]) {
+                            taken++;
+                            pc = target[pc];
+                            continue loop;
+                        }
+                        break;
+                    case JUMP:
+                        pc = target[pc];
+                        continue loop;
+                    case JAL:
+                        r[31] = TEXT_BASE + 4 * (pc + 1);
+                        pc = target[pc];
+                        continue loop;
+                    case JR: {
+                        int a = r[rs[pc]] - TEXT_BASE;
+                        if ((a & 3) != 0 || a < 0 || (a >> 2) > numInstrs)
+                            throw new SimException("jump outside the text segment");
+                        pc = a >> 2;
+                        continue loop;
+                    }
+                    case SYSCALL:
+                        if (!syscall())
+                            break loop;
+                        break;
+                    case HALT:
+                        break loop;
+                }
+                r[0] = 0;
+                pc++;
+            }
+        } catch (SimException ex) {
+            throw new SimException("line " + lineOf[pc] + ": " + ex.getMessage());
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new SimException("line " + lineOf[pc] + ": bad address");
+        } finally {
+            takenCount = taken;
+        }
+    }
+
+    // carry out the syscall in V0; return false if the program exits
+    private boolean syscall() throws IOException {
+        switch (reg[2]) {
+            case 1:
+                out.print(reg[4]);
+                break;
+            case 4:
+                for (int a = reg[4]; ; a++) {
+                    int b = loadByte(a);
+                    if (b == 0)
+                        break;
+                    out.write(b);
+                }
+                break;
+            case 5:
+                out.flush();
+                reg[2] = 0;
+                if (in.nextToken() == StreamTokenizer.TT_WORD) {
+                    try {
+                        reg[2] = Integer.parseInt(in.sval);
+                    } catch (NumberFormatException ex) { }
+                }
+                break;
+            case 10:
+                return false;
+            case 14: {
+                // read up to A2 bytes to A1; V0 is how many (0 at the end)
+                if (reg[4] != 0)
+                    throw new SimException("read from file " + reg[4]);
+                out.flush();
+                char[] chars = new char[Math.max(reg[6], 0)];
+                int n = Math.max(reader.read(chars, 0, chars.length), 0);
+                for (int k = 0; k < n; k++)
+                    storeByte(reg[5] + k, (byte)chars[k]);
+                reg[2] = n;
+                break;
+            }
+            default:
+                throw new SimException("unsupported syscall " + reg[2]);
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // report
+    // **********************************************************************
+
+    // the number of times the instruction after each text label ran
+    public Map<String, Long> labelCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, Integer> entry : textLabels.entrySet())
+            counts.put(entry.getKey(), count[entry.getValue()]);
+        return counts;
+    }
+
+    public void report(PrintStream p) {
+        long instrCount = 0, nativeCount = 0, cycleCount = takenCount * TAKEN_PENALTY;
+        long loadCount = 0, storeCount = 0, branchCount = 0, jumpCount = 0;
+        long syscallCount = 0;
+        for (int k = 0; k < numInstrs; k++) {
+            long c = count[k];
+            instrCount += c;
+            nativeCount += c * cost[k];
+            cycleCount += c * (cost[k] + latency[k]);
+            switch (op[k]) {
+                case LW: case LB:
+                    loadCount += c;
+                    break;
+                case SW: case SB:
+                    storeCount += c;
+                    break;
+                case BEQ: case BNE: case BLT: case BGT: case BLE: case BGE:
+                    branchCount += c;
+                    break;
+                case JUMP: case JAL: case JR:
+                    jumpCount += c;
+                    break;
+                case SYSCALL:
+                    syscallCount += c;
+                    break;
+            }
+        }
+
+        p.println("instructions: " + instrCount);
+        p.println("native:       " + nativeCount);
+        p.println("cycles:       " + cycleCount);
+        p.println("loads:        " + loadCount);
+        p.println("stores:       " + storeCount);
+        p.println("branches:     " + branchCount + " (" + takenCount + " taken)");
+        p.println("jumps/calls:  " + jumpCount);
+        p.println("syscalls:     " + syscallCount);
+    }
+}
@@ -1,23 +1,55 @@
 import java.io.*;
+import java.util.Arrays;
 import java_cup.runtime.*;
 
 /**
  * Main program to test the C Flat parser.
  *
- * There should be 2 command-line arguments:
+ * There should be 3 command-line arguments, optionally preceded by
+ * code-generation options (see Codegen.setOption):
  *    1. the file to be parsed
  *    2. the output file into which the AST built by the parser should be
  *       unparsed
- * The program opens the two files, creates a scanner and a parser, and
- * calls the parser.  If the parse is successful, the AST is unparsed.
+ *    3. the output file for the generated MIPS code (or, with -jvm, the
+ *       class file, which names the class); with -interp there is none
+ *       and the program is run instead
+ * The program opens the files, creates a scanner and a parser, and
+ * calls the parser.  If the parse is successful, the AST is unparsed
+ * and code is generated.
  */
 
 public class P6 {
     public static void main(String[] args)
         throws IOException // may be thrown by the scanner
     {
+        // options come before the file names
+        int argc = 0;
+        while (argc < args.length && args[argc].startsWith("-")) {
+            if (!Codegen.setOption(args[argc])) {
+                System.err.println("unknown option " + args[argc]);
+                System.exit(-1);
+            }
+            argc++;
+        }
+        args = Arrays.copyOfRange(args, argc, args.length);
+
+        // the code generated from the control-flow graph passes every
+        // actual on the stack, so no caller may pass any in registers
+        if (Codegen.ssa)
+            Codegen.regArgs = false;
+
+        if (Codegen.profileFile != null) {
+            try {
+                Profile.read(Codegen.profileFile);
+            } catch (IOException ex) {
+                System.err.println("Profile " + Codegen.profileFile +
+                                   " could not be read: " + ex.getMessage());
+                System.exit(-1);
+            }
+        }
+
         // check for command-line args
-        if (args.length != 3) {
+        if (args.length != (Codegen.interp ? 2 : 3)) {
             System.err.println("please supply name of file to be parsed " +
 			                   "and name of file for unparsed version.");
             System.exit(-1);
@@ -43,8 +75,12 @@ public class P6 {
         }
 
         PrintWriter codeGenFile = null;
+        OutputStream classFile = null;
         try {
-            codeGenFile = new PrintWriter(args[2]);
+            if (Codegen.jvm && !Codegen.interp)
+                classFile = new FileOutputStream(args[2]);
+            else if (!Codegen.interp)
+                codeGenFile = new PrintWriter(args[2]);
         } catch (FileNotFoundException ex) {
             System.err.println("File " + args[2] +
                                " could not be opened for writing.");
@@ -84,10 +120,53 @@ public class P6 {
         ((ASTnode)root.value).unparse(outFile, 0);
         outFile.close();
         
+        if (Codegen.interp) {
+            Interp.Function main = ((ProgramNode)root.value).interpret();
+            if (ErrMsg.isError == true) {
+                System.out.println("Errors occured during code generation");
+                System.exit(-1);
+            }
+            if (!Interp.run(main))
+                System.exit(-1);
+            return;
+        }
+        
+        if (Codegen.jvm) {
+            // the class is named after its file
+            String className = new File(args[2]).getName();
+            if (className.endsWith(".class"))
+                className = className.substring(0, className.length() - 6);
+            if (!isJavaIdentifier(className)) {
+                System.err.println("File " + args[2] + " does not name a class.");
+                System.exit(-1);
+            }
+            
+            byte[] bytes = ((ProgramNode)root.value).jvmGen(className);
+            if (ErrMsg.isError == true) {
+                System.out.println("Errors occured during code generation");
+                System.exit(-1);
+            }
+            classFile.write(bytes);
+            classFile.close();
+            
+            if (Codegen.runJvm && !JvmRuntime.run(className, bytes))
+                System.exit(-1);
+            return;
+        }
+        
         ((ProgramNode)root.value).codeGen(codeGenFile);
 		codeGenFile.close();
 
         return;
     }
-}
 
+    private static boolean isJavaIdentifier(String name) {
+        if (name.length() == 0 || !Character.isJavaIdentifierStart(name.charAt(0)))
+            return false;
+        for (int k = 1; k < name.length(); k++) {
+            if (!Character.isJavaIdentifierPart(name.charAt(k)))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,217 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The Profile class ties the code P6 generates with -profile to the
+// counts MipsSim collects while running it.
+//
+// With -profile, each point to be counted is marked with a label
+//     _prof<n>_<kind>_<line>_<col>_<name>
+// where kind is
+//     fn    -- the function name is entered
+//     loop  -- the body of a while loop in function name is started
+//     if    -- an if statement in function name is reached
+//     then  -- the then part of an if statement is started
+//     else  -- the else part of an if statement is started
+//     call  -- a call is made from function name
+// line and col locate the function's name, the condition of the loop or
+// if statement, or the called function's name in the source, and n
+// keeps apart the copies an inlined function leaves.
+// MipsSim -profile reads off how often the instruction after each label
+// ran, adds up the counts of each point and reports the points, hottest
+// first.  Each label is followed by a nop of its own, because a label
+// put on an instruction that is also a jump's target (e.g., the top of
+// an inner loop starting an outer loop's body) would count the jumps
+// there too.  The nops are all that -profile costs at run time.  The
+// counts can also be written to a profile file, one point per line:
+//     <kind> <line> <col> <count> <name>
+// which P6 -profile-use reads back to guide code generation of the same
+// source: which way branches usually go, which calls are hot and which
+// functions run most.
+// **********************************************************************
+
+public class Profile {
+    public static final String PREFIX = "_prof";
+
+    // for making profile labels unique
+    private static int currLabel = 0;
+
+    // name of the function whose code is being generated
+    public static String function = "";
+
+    // the counts read by read(), by Point.key()
+    private static Map<String, Long> counts = null;
+    private static long totalCalls = 0;
+
+    // a call is hot if it makes at least 1/HOT_CALLS of all calls, and a
+    // branch is cold if it goes one way at most 1/COLD_BRANCH of the time
+    private static final int HOT_CALLS = 100;
+    private static final int COLD_BRANCH = 4;
+
+    // a counted point of the program
+    public static class Point {
+        public String kind;
+        public int line, col;
+        public String name;
+        public long count;
+
+        public String key() {
+            return Profile.key(kind, line, col);
+        }
+    }
+
+    private static String key(String kind, int line, int col) {
+        return kind + " " + line + " " + col;
+    }
+
+    // **********************************************************************
+    // genLabel
+    //    given:  the kind and source location of a point
+    //    do:     with -profile, mark a nop counting that point
+    // **********************************************************************
+    public static void genLabel(String kind, int line, int col) {
+        if (Codegen.profile) {
+            Codegen.genLabel(PREFIX + currLabel++ + "_" + kind + "_" + line +
+                             "_" + col + "_" + function);
+            Codegen.generate("nop");
+        }
+    }
+
+    // **********************************************************************
+    // collect
+    //    given:  the execution count of the instruction after each label
+    //    return: the counted points, hottest first
+    // **********************************************************************
+    public static List<Point> collect(Map<String, Long> labelCounts) {
+        Map<String, Point> points = new HashMap<String, Point>();
+        for (Map.Entry<String, Long> entry : labelCounts.entrySet()) {
+            String label = entry.getKey();
+            if (!label.startsWith(PREFIX))
+                continue;
+            String[] parts = label.split("_", 6);   // "", prof<n>, kind, line, col, name
+            if (parts.length != 6)
+                continue;
+            Point point = new Point();
+            point.kind = parts[2];
+            point.line = Integer.parseInt(parts[3]);
+            point.col = Integer.parseInt(parts[4]);
+            point.name = parts[5];
+
+            // the copies of an inlined function add up
+            Point old = points.get(point.key());
+            if (old != null)
+                old.count += entry.getValue();
+            else {
+                point.count = entry.getValue();
+                points.put(point.key(), point);
+            }
+        }
+
+        List<Point> sorted = new ArrayList<Point>(points.values());
+        Collections.sort(sorted, new Comparator<Point>() {
+            public int compare(Point a, Point b) {
+                if (a.count != b.count)
+                    return a.count > b.count ? -1 : 1;
+                if (a.line != b.line)
+                    return a.line - b.line;
+                return a.col - b.col;
+            }
+        });
+        return sorted;
+    }
+
+    // **********************************************************************
+    // report
+    //    given:  the counted points, hottest first
+    //    do:     print the functions and loops as a table of hot spots
+    // **********************************************************************
+    public static void report(List<Point> points, PrintStream p) {
+        p.println("hot spots:");
+        p.println(String.format("%14s  %-24s %s", "count", "what", "where"));
+        for (Point point : points) {
+            if (!point.kind.equals("fn") && !point.kind.equals("loop"))
+                continue;
+            String what = point.kind.equals("fn") ? "calls of " + point.name
+                                                  : "loop in " + point.name;
+            p.println(String.format("%14d  %-24s %d:%d", point.count, what,
+                                    point.line, point.col));
+        }
+    }
+
+    // **********************************************************************
+    // write
+    //    given:  the counted points
+    //    do:     write them as a profile file
+    // **********************************************************************
+    public static void write(List<Point> points, PrintStream p) {
+        for (Point point : points) {
+            p.println(point.kind + " " + point.line + " " + point.col + " " +
+                      point.count + " " + point.name);
+        }
+    }
+
+    // **********************************************************************
+    // read
+    //    given:  the name of a profile file
+    //    do:     read its counts for count() and the other queries
+    // **********************************************************************
+    public static void read(String fileName) throws IOException {
+        counts = new HashMap<String, Long>();
+        BufferedReader r = new BufferedReader(new FileReader(fileName));
+        String line;
+        while ((line = r.readLine()) != null) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 4)
+                continue;
+            try {
+                long count = Long.parseLong(parts[3]);
+                counts.put(key(parts[0], Integer.parseInt(parts[1]),
+                               Integer.parseInt(parts[2])), count);
+                if (parts[0].equals("call"))
+                    totalCalls += count;
+            } catch (NumberFormatException ex) {
+                r.close();
+                throw new IOException("bad line in profile: " + line);
+            }
+        }
+        r.close();
+    }
+
+    // **********************************************************************
+    // isUsed
+    //    return: true if a profile was read
+    // **********************************************************************
+    public static boolean isUsed() {
+        return counts != null;
+    }
+
+    // **********************************************************************
+    // count
+    //    given:  the kind and source location of a point
+    //    return: its count in the profile (0 if it never ran)
+    // **********************************************************************
+    public static long count(String kind, int line, int col) {
+        Long count = counts == null ? null : counts.get(key(kind, line, col));
+        return count == null ? 0 : count;
+    }
+
+    // **********************************************************************
+    // isHotCall
+    //    given:  the source location of a call's function name
+    //    return: true if the profile says the call is made often
+    // **********************************************************************
+    public static boolean isHotCall(int line, int col) {
+        long count = count("call", line, col);
+        return count > 0 && count * HOT_CALLS >= totalCalls;
+    }
+
+    // **********************************************************************
+    // isCold
+    //    given:  how often one way of a branch was taken and how often
+    //            the branch was reached
+    //    return: true if that way is rarely taken
+    // **********************************************************************
+    public static boolean isCold(long count, long total) {
+        return total > 0 && count * COLD_BRANCH <= total;
+    }
+}
@@ -0,0 +1,264 @@
+import java.util.*;
+
+// **********************************************************************
+// The Regalloc class does the register allocation of -regalloc: it
+// gives the locals, formals and temporaries of a function (see Cfg),
+// once the graph is out of SSA form, registers to live in for the whole
+// function.
+//
+// A liveness analysis over the blocks finds, at each instruction, the
+// variables whose values may still be read.  Two variables interfere if
+// one is assigned while the other is live (except for the source of a
+// move, which may share the register of its destination), and may not
+// share a register.  The variables are colored greedily in order of
+// their weight, the number of times they are read and written with each
+// one counted 10 times over for every loop it is in, so loop counters
+// and accumulators come first; a variable takes the register of one it
+// is moved to or from when it can, so the move disappears.
+//
+// A variable live across a call gets one of the callee-saved registers
+// $s0-$s7, which the function saves in its frame on entry and restores
+// on exit (the code generated from the AST never uses them, so only
+// functions generated from their CFG need to); one that is not may also
+// get one of $t2-$t9, which calls do not preserve but nothing else uses.
+// Variables left without a register stay in their frame slots.
+// **********************************************************************
+
+public class Regalloc {
+    private static final String[] SAVED = {
+        "$s0", "$s1", "$s2", "$s3", "$s4", "$s5", "$s6", "$s7"
+    };
+    private static final String[] SCRATCH = {
+        "$t2", "$t3", "$t4", "$t5", "$t6", "$t7", "$t8", "$t9"
+    };
+
+    // a loop multiplies the weight of what is in it by this much (up to
+    // MAX_DEPTH loops deep)
+    private static final int LOOP_WEIGHT = 10;
+    private static final int MAX_DEPTH = 6;
+
+    // **********************************************************************
+    // run
+    //    given:  a graph out of SSA form
+    //    do:     set the reg of the variables given a register, and the
+    //            registers to save and variables to load on entry
+    // **********************************************************************
+    public static void run(Cfg cfg) {
+        Map<Cfg.Block, Set<Cfg.Var>> liveOut = liveness(cfg);
+
+        Map<Cfg.Var, Set<Cfg.Var>> conflicts = new LinkedHashMap<Cfg.Var, Set<Cfg.Var>>();
+        Map<Cfg.Var, Set<Cfg.Var>> moves = new HashMap<Cfg.Var, Set<Cfg.Var>>();
+        Set<Cfg.Var> acrossCalls = new HashSet<Cfg.Var>();
+        final Map<Cfg.Var, Long> weight = new HashMap<Cfg.Var, Long>();
+        Map<Cfg.Block, Integer> depth = loopDepths(cfg);
+
+        for (Cfg.Block b : cfg.blocks) {
+            long w = 1;
+            for (int k = Math.min(depth.get(b), MAX_DEPTH); k > 0; k--)
+                w *= LOOP_WEIGHT;
+
+            Set<Cfg.Var> live = new HashSet<Cfg.Var>(liveOut.get(b));
+            for (Cfg.Operand arg : endOperands(b))
+                use(arg, live, weight, w, conflicts);
+            for (int i = b.instrs.size() - 1; i >= 0; i--) {
+                Cfg.Instr instr = b.instrs.get(i);
+                Cfg.Var dst = candidate(instr.dst) ? instr.dst : null;
+                if (dst != null) {
+                    node(dst, conflicts);
+                    live.remove(dst);
+                    Cfg.Operand source = instr.op.equals("move") ? instr.args[0] : null;
+                    for (Cfg.Var v : live) {
+                        if (v != source) {
+                            node(v, conflicts);
+                            conflicts.get(dst).add(v);
+                            conflicts.get(v).add(dst);
+                        }
+                    }
+                    if (candidate(source)) {
+                        related(dst, (Cfg.Var)source, moves);
+                        related((Cfg.Var)source, dst, moves);
+                    }
+                    add(weight, dst, w);
+                }
+                if (instr.op.equals("call"))
+                    acrossCalls.addAll(live);
+                for (Cfg.Operand arg : instr.args)
+                    use(arg, live, weight, w, conflicts);
+            }
+        }
+
+        // the variables live on entry are all set when it starts
+        Set<Cfg.Var> entry = liveIn(cfg.entry, liveOut.get(cfg.entry));
+        for (Cfg.Var v : entry) {
+            for (Cfg.Var other : entry) {
+                if (other != v)
+                    conflicts.get(v).add(other);
+            }
+        }
+
+        // the heaviest variables pick first
+        List<Cfg.Var> order = new ArrayList<Cfg.Var>(conflicts.keySet());
+        Collections.sort(order, new Comparator<Cfg.Var>() {
+            public int compare(Cfg.Var a, Cfg.Var b) {
+                return Long.compare(weight.get(b), weight.get(a));
+            }
+        });
+
+        Set<String> saved = new TreeSet<String>();
+        for (Cfg.Var v : order) {
+            Set<String> taken = new HashSet<String>();
+            for (Cfg.Var other : conflicts.get(v)) {
+                if (other.reg != null)
+                    taken.add(other.reg);
+            }
+            List<String> pool = new ArrayList<String>();
+            if (!acrossCalls.contains(v))
+                pool.addAll(Arrays.asList(SCRATCH));
+            pool.addAll(Arrays.asList(SAVED));
+            pool.removeAll(taken);
+            if (pool.isEmpty())
+                continue;           // stays in memory
+
+            v.reg = pool.get(0);
+            Set<Cfg.Var> partners = moves.get(v);
+            if (partners != null) {
+                for (Cfg.Var partner : partners) {
+                    if (partner.reg != null && pool.contains(partner.reg)) {
+                        v.reg = partner.reg;
+                        break;
+                    }
+                }
+            }
+            if (Arrays.asList(SAVED).contains(v.reg))
+                saved.add(v.reg);
+        }
+
+        cfg.savedRegs.addAll(saved);
+        for (Cfg.Var v : entry) {
+            if (v.reg != null)
+                cfg.entryLoads.add(v);
+        }
+    }
+
+    // only locals, formals and temporaries are given registers
+    private static boolean candidate(Cfg.Operand value) {
+        return value instanceof Cfg.Var && !((Cfg.Var)value).isGlobal();
+    }
+
+    private static void node(Cfg.Var v, Map<Cfg.Var, Set<Cfg.Var>> conflicts) {
+        if (!conflicts.containsKey(v))
+            conflicts.put(v, new LinkedHashSet<Cfg.Var>());
+    }
+
+    private static void related(Cfg.Var a, Cfg.Var b, Map<Cfg.Var, Set<Cfg.Var>> moves) {
+        if (!moves.containsKey(a))
+            moves.put(a, new LinkedHashSet<Cfg.Var>());
+        moves.get(a).add(b);
+    }
+
+    private static void add(Map<Cfg.Var, Long> weight, Cfg.Var v, long w) {
+        Long old = weight.get(v);
+        weight.put(v, old == null ? w : old + w);
+    }
+
+    private static void use(Cfg.Operand arg, Set<Cfg.Var> live, Map<Cfg.Var, Long> weight,
+                            long w, Map<Cfg.Var, Set<Cfg.Var>> conflicts) {
+        if (!candidate(arg))
+            return;
+        Cfg.Var v = (Cfg.Var)arg;
+        node(v, conflicts);
+        live.add(v);
+        add(weight, v, w);
+    }
+
+    private static List<Cfg.Operand> endOperands(Cfg.Block b) {
+        List<Cfg.Operand> operands = new ArrayList<Cfg.Operand>(2);
+        if (b.left != null)
+            operands.add(b.left);
+        if (b.right != null)
+            operands.add(b.right);
+        return operands;
+    }
+
+    // the variables live on entry to b, given those live on exit
+    private static Set<Cfg.Var> liveIn(Cfg.Block b, Set<Cfg.Var> out) {
+        Set<Cfg.Var> live = new LinkedHashSet<Cfg.Var>(out);
+        for (Cfg.Operand arg : endOperands(b)) {
+            if (candidate(arg))
+                live.add((Cfg.Var)arg);
+        }
+        for (int i = b.instrs.size() - 1; i >= 0; i--) {
+            Cfg.Instr instr = b.instrs.get(i);
+            live.remove(instr.dst);
+            for (Cfg.Operand arg : instr.args) {
+                if (candidate(arg))
+                    live.add((Cfg.Var)arg);
+            }
+        }
+        return live;
+    }
+
+    // the variables live on exit from each block
+    private static Map<Cfg.Block, Set<Cfg.Var>> liveness(Cfg cfg) {
+        Map<Cfg.Block, Set<Cfg.Var>> liveOut = new HashMap<Cfg.Block, Set<Cfg.Var>>();
+        Map<Cfg.Block, Set<Cfg.Var>> liveIn = new HashMap<Cfg.Block, Set<Cfg.Var>>();
+        for (Cfg.Block b : cfg.blocks) {
+            liveOut.put(b, new LinkedHashSet<Cfg.Var>());
+            liveIn.put(b, new LinkedHashSet<Cfg.Var>());
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = cfg.blocks.size() - 1; k >= 0; k--) {
+                Cfg.Block b = cfg.blocks.get(k);
+                Set<Cfg.Var> out = liveOut.get(b);
+                for (Cfg.Block s : b.succs)
+                    out.addAll(liveIn.get(s));
+                Set<Cfg.Var> in = liveIn(b, out);
+                if (!in.equals(liveIn.get(b))) {
+                    liveIn.put(b, in);
+                    changed = true;
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    // the number of loops each block is in: a loop is the blocks that
+    // reach the source of a back edge (one to a block that dominates
+    // it) without going through its target
+    private static Map<Cfg.Block, Integer> loopDepths(Cfg cfg) {
+        Ssa.dominators(cfg);
+        Map<Cfg.Block, Integer> depth = new HashMap<Cfg.Block, Integer>();
+        for (Cfg.Block b : cfg.blocks)
+            depth.put(b, 0);
+        for (Cfg.Block b : cfg.blocks) {
+            for (Cfg.Block head : b.succs) {
+                if (!dominates(head, b))
+                    continue;
+                Set<Cfg.Block> loop = new HashSet<Cfg.Block>();
+                Deque<Cfg.Block> work = new ArrayDeque<Cfg.Block>();
+                loop.add(head);
+                if (loop.add(b))
+                    work.push(b);
+                while (!work.isEmpty()) {
+                    for (Cfg.Block p : work.pop().preds) {
+                        if (loop.add(p))
+                            work.push(p);
+                    }
+                }
+                for (Cfg.Block in : loop)
+                    depth.put(in, depth.get(in) + 1);
+            }
+        }
+        return depth;
+    }
+
+    private static boolean dominates(Cfg.Block a, Cfg.Block b) {
+        for (; b != null; b = b.idom) {
+            if (b == a)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,307 @@
+import java.util.*;
+
+// **********************************************************************
+// The Sccp class does the sparse conditional constant propagation of
+// -sccp on the control-flow graph of a function in SSA form (see Cfg and
+// Ssa), after Wegman and Zadeck.
+//
+// Each version of a variable starts out with no value known yet, and
+// each edge of the graph as not executable.  Starting from the entry,
+// the instructions of the blocks found executable are evaluated over
+// constants: a version becomes a constant if every definition reaching
+// it (through executable edges, for a phi) gives the same constant, and
+// varying otherwise.  A branch on constants makes only one of its edges
+// executable, so code that can never run is left out of the evaluation
+// and cannot spoil the constants flowing out of the rest.  The values
+// only ever go down, from unknown to a constant to varying, so the
+// propagation ends.
+//
+// Then every use of a constant version is replaced by the constant,
+// the instructions computing constants are dropped, branches that can
+// only go one way become jumps, and the blocks that are never executed
+// are removed.  Arithmetic that would overflow or divide by zero at run
+// time is not folded, so it still traps as before (but with -wrap a
+// multiply wraps, and is folded the same way).
+// **********************************************************************
+
+public class Sccp {
+    // the value of a version that is not a constant
+    private static final Cfg.Operand VARYING = new Cfg.Const(0);
+
+    // the value of each version found so far (none for a version with no
+    // value known yet)
+    private static Map<Cfg.Var, Cfg.Operand> values;
+
+    // the executable blocks and edges (an edge is the list of its source
+    // and its target)
+    private static Set<Cfg.Block> executable;
+    private static Set<List<Cfg.Block>> edges;
+
+    // the instructions using each version, and the blocks whose branch
+    // or return uses it
+    private static Map<Cfg.Var, List<Cfg.Instr>> uses;
+    private static Map<Cfg.Var, List<Cfg.Block>> endUses;
+    private static Map<Cfg.Instr, Cfg.Block> blockOf;
+
+    // **********************************************************************
+    // run
+    //    given:  a graph in SSA form
+    //    do:     propagate the constants and prune the graph with them
+    // **********************************************************************
+    public static void run(Cfg cfg) {
+        values = new HashMap<Cfg.Var, Cfg.Operand>();
+        executable = new HashSet<Cfg.Block>();
+        edges = new HashSet<List<Cfg.Block>>();
+        findUses(cfg);
+
+        Deque<List<Cfg.Block>> flow = new ArrayDeque<List<Cfg.Block>>();
+        Deque<Cfg.Var> changed = new ArrayDeque<Cfg.Var>();
+        visit(cfg.entry, flow, changed);
+        while (!flow.isEmpty() || !changed.isEmpty()) {
+            if (!flow.isEmpty()) {
+                List<Cfg.Block> edge = flow.pop();
+                if (!edges.add(edge))
+                    continue;
+                Cfg.Block b = edge.get(1);
+                if (executable.contains(b)) {
+                    // only the phis see the new edge
+                    for (Cfg.Instr instr : b.instrs) {
+                        if (instr.op.equals("phi"))
+                            evaluate(instr, b, changed);
+                    }
+                }
+                else
+                    visit(b, flow, changed);
+                continue;
+            }
+            Cfg.Var v = changed.pop();
+            for (Cfg.Instr instr : uses.get(v)) {
+                Cfg.Block b = blockOf.get(instr);
+                if (executable.contains(b))
+                    evaluate(instr, b, changed);
+            }
+            for (Cfg.Block b : endUses.get(v)) {
+                if (executable.contains(b))
+                    evaluateEnd(b, flow);
+            }
+        }
+
+        rewrite(cfg);
+        values = null;
+        executable = null;
+        edges = null;
+        uses = null;
+        endUses = null;
+        blockOf = null;
+    }
+
+    private static void findUses(Cfg cfg) {
+        uses = new HashMap<Cfg.Var, List<Cfg.Instr>>();
+        endUses = new HashMap<Cfg.Var, List<Cfg.Block>>();
+        blockOf = new HashMap<Cfg.Instr, Cfg.Block>();
+        for (Cfg.Block b : cfg.blocks) {
+            for (Cfg.Instr instr : b.instrs) {
+                blockOf.put(instr, b);
+                if (instr.dst != null)
+                    addUse(instr.dst, null, null);
+                for (Cfg.Operand arg : instr.args)
+                    addUse(arg, instr, null);
+            }
+            addUse(b.left, null, b);
+            addUse(b.right, null, b);
+        }
+    }
+
+    private static void addUse(Cfg.Operand value, Cfg.Instr instr, Cfg.Block end) {
+        if (!(value instanceof Cfg.Var))
+            return;
+        Cfg.Var v = (Cfg.Var)value;
+        if (!uses.containsKey(v)) {
+            uses.put(v, new ArrayList<Cfg.Instr>());
+            endUses.put(v, new ArrayList<Cfg.Block>());
+        }
+        if (instr != null)
+            uses.get(v).add(instr);
+        if (end != null)
+            endUses.get(v).add(end);
+    }
+
+    // evaluate all of a block found executable for the first time
+    private static void visit(Cfg.Block b, Deque<List<Cfg.Block>> flow,
+                              Deque<Cfg.Var> changed) {
+        executable.add(b);
+        for (Cfg.Instr instr : b.instrs)
+            evaluate(instr, b, changed);
+        evaluateEnd(b, flow);
+    }
+
+    // the value of an operand: a constant, VARYING, or null if not known
+    private static Cfg.Operand value(Cfg.Operand operand) {
+        if (operand instanceof Cfg.Const)
+            return operand;
+        if (operand instanceof Cfg.Var) {
+            Cfg.Var v = (Cfg.Var)operand;
+            if (v.isGlobal() || v.version == 0)
+                return VARYING;     // in memory, or its value on entry
+            return values.get(v);
+        }
+        return VARYING;             // a string's address
+    }
+
+    // the meet of two values
+    private static Cfg.Operand meet(Cfg.Operand a, Cfg.Operand b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        if (a == VARYING || b == VARYING)
+            return VARYING;
+        return ((Cfg.Const)a).value == ((Cfg.Const)b).value ? a : VARYING;
+    }
+
+    private static void evaluate(Cfg.Instr instr, Cfg.Block b,
+                                 Deque<Cfg.Var> changed) {
+        if (instr.dst == null || instr.dst.isGlobal())
+            return;
+        Cfg.Operand value;
+        if (instr.op.equals("phi")) {
+            value = null;
+            for (int k = 0; k < instr.args.length; k++) {
+                if (edges.contains(Arrays.asList(b.preds.get(k), b)))
+                    value = meet(value, value(instr.args[k]));
+            }
+        }
+        else if (instr.op.equals("call") || instr.op.equals("read") ||
+                 instr.op.equals("readbool"))
+            value = VARYING;
+        else {
+            Cfg.Operand[] args = new Cfg.Operand[instr.args.length];
+            value = null;
+            for (int k = 0; k < args.length; k++) {
+                args[k] = value(instr.args[k]);
+                if (args[k] == VARYING) {
+                    value = VARYING;
+                    break;
+                }
+                if (args[k] == null)
+                    return;         // wait until every operand is known
+            }
+            if (value == null)
+                value = fold(instr.op, args);
+        }
+
+        Cfg.Operand old = values.get(instr.dst);
+        value = meet(old, value);   // never go back up
+        if (value != null && value != old) {
+            values.put(instr.dst, value);
+            changed.push(instr.dst);
+        }
+    }
+
+    // the constant an operation gives on constants, or VARYING if it
+    // would trap or is not folded
+    private static Cfg.Operand fold(String op, Cfg.Operand[] args) {
+        int a = ((Cfg.Const)args[0]).value;
+        int b = args.length > 1 ? ((Cfg.Const)args[1]).value : 0;
+        try {
+            switch (op) {
+                case "move": return new Cfg.Const(a);
+                case "neg":  return new Cfg.Const(Math.negateExact(a));
+                case "add":  return new Cfg.Const(Math.addExact(a, b));
+                case "sub":  return new Cfg.Const(Math.subtractExact(a, b));
+                case "mulo": return new Cfg.Const(Codegen.wrap ? a * b
+                                                  : Math.multiplyExact(a, b));
+                case "div":
+                    if (b == 0 || (a == Integer.MIN_VALUE && b == -1))
+                        return VARYING;
+                    return new Cfg.Const(a / b);
+                case "xor":  return new Cfg.Const(a ^ b);
+                case "seq":  return new Cfg.Const(a == b ? 1 : 0);
+                case "sne":  return new Cfg.Const(a != b ? 1 : 0);
+                case "slt":  return new Cfg.Const(a < b ? 1 : 0);
+                case "sgt":  return new Cfg.Const(a > b ? 1 : 0);
+                case "sle":  return new Cfg.Const(a <= b ? 1 : 0);
+                case "sge":  return new Cfg.Const(a >= b ? 1 : 0);
+            }
+        } catch (ArithmeticException ex) {
+        }
+        return VARYING;
+    }
+
+    // whether the branch "a cond b" is taken, for constants a and b
+    private static boolean taken(String cond, int a, int b) {
+        switch (cond) {
+            case "beq": return a == b;
+            case "bne": return a != b;
+            case "blt": return a < b;
+            case "bgt": return a > b;
+            case "ble": return a <= b;
+            default:    return a >= b;
+        }
+    }
+
+    // make the edges out of b that it can take executable
+    private static void evaluateEnd(Cfg.Block b, Deque<List<Cfg.Block>> flow) {
+        if (b.end == Cfg.JUMP)
+            flow.push(Arrays.asList(b, b.succs.get(0)));
+        else if (b.end == Cfg.BRANCH) {
+            Cfg.Operand left = value(b.left), right = value(b.right);
+            if (left == null || right == null)
+                return;
+            if (left == VARYING || right == VARYING) {
+                flow.push(Arrays.asList(b, b.succs.get(0)));
+                flow.push(Arrays.asList(b, b.succs.get(1)));
+            }
+            else {
+                boolean way = taken(b.cond, ((Cfg.Const)left).value,
+                                    ((Cfg.Const)right).value);
+                flow.push(Arrays.asList(b, b.succs.get(way ? 0 : 1)));
+            }
+        }
+    }
+
+    // replace the constants, drop what is dead and remove what never runs
+    private static void rewrite(Cfg cfg) {
+        for (Cfg.Block b : new ArrayList<Cfg.Block>(cfg.blocks)) {
+            if (!executable.contains(b)) {
+                for (Cfg.Block s : new ArrayList<Cfg.Block>(b.succs))
+                    Cfg.removeEdge(b, s);
+                cfg.blocks.remove(b);
+            }
+        }
+
+        for (Cfg.Block b : cfg.blocks) {
+            for (Cfg.Block s : new ArrayList<Cfg.Block>(b.succs)) {
+                if (!edges.contains(Arrays.asList(b, s)))
+                    Cfg.removeEdge(b, s);
+            }
+            if (b.end == Cfg.BRANCH && b.succs.size() == 1) {
+                b.end = Cfg.JUMP;
+                b.left = b.right = null;
+            }
+
+            Iterator<Cfg.Instr> it = b.instrs.iterator();
+            while (it.hasNext()) {
+                Cfg.Instr instr = it.next();
+                if (instr.dst != null && isConst(instr.dst) &&
+                    !instr.op.equals("call")) {
+                    it.remove();
+                    continue;
+                }
+                for (int k = 0; k < instr.args.length; k++)
+                    instr.args[k] = replace(instr.args[k]);
+            }
+            b.left = replace(b.left);
+            b.right = replace(b.right);
+        }
+    }
+
+    private static boolean isConst(Cfg.Operand operand) {
+        Cfg.Operand value = operand instanceof Cfg.Var ? value(operand) : null;
+        return value != null && value != VARYING;
+    }
+
+    private static Cfg.Operand replace(Cfg.Operand operand) {
+        return isConst(operand) ? value(operand) : operand;
+    }
+}
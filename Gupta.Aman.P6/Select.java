@@ -0,0 +1,473 @@
+import java.util.*;
+
+// **********************************************************************
+// The Select class is the instruction selector of -select: it covers an
+// expression tree made of arithmetic, comparisons, logical operators,
+// variables and literals with tiles of MIPS instructions that keep the
+// intermediate values in registers, instead of the push and pop around
+// every node of the code generated node by node.
+//
+// Selection is bottom-up, as in a BURS code generator: each node is
+// labeled with the cheapest rule covering it, given the labels of its
+// kids.  A literal fits in an instruction's immediate field (addi,
+// slti, andi, ori, ...), in $zero if it is 0, or is loaded with li; a
+// variable is read from its register or loaded straight from off($fp)
+// or its label; an operator takes both operands in registers, or one of
+// them as an immediate.  The cost of a rule is the cycles MipsSim
+// charges for its instructions plus the costs of the kids it leaves to
+// other rules.  A comparison used for a branch becomes a single
+// compare-and-branch on its operands.
+//
+// The tiles are then emitted in a walk over the tree that puts the value
+// of a node in the first of the registers below still free, its left
+// operand there too and its right one in the next.  A tree that needs
+// more registers than there are, or holds anything else (a call, an
+// assignment, a string, ...), is left to the code generated node by
+// node, whose subtrees may in turn be selected.  An expression saved or
+// reused by Cse is stored to or loaded from its temporary as before.
+// **********************************************************************
+
+public class Select {
+    // the registers values are computed in; the code generated from the
+    // AST uses no others
+    private static final String[] REGS = {
+        Codegen.T0, Codegen.T1, "$t2", "$t3", "$t4", "$t5", "$t6", "$t7",
+        "$t8", "$t9"
+    };
+
+    // the rules
+    private static final int ZERO = 0,      // 0, in $zero
+                             CONST = 1,     // li
+                             REG = 2,       // a formal kept in a register
+                             LOAD = 3,      // lw of a variable
+                             REUSE = 4,     // lw of a Cse temporary
+                             UNARY = 5,     // op on the operand
+                             RR = 6,        // op on two registers
+                             RI = 7,        // op on a register and the
+                                            // right operand as immediate
+                             IR = 8;        // the same with the left one
+
+    // the rule covering a node, the cost of its code (with that of its
+    // kids) and the number of registers it uses; a node whose value ends
+    // up in REGS[k] uses at least that one
+    private static class Label {
+        int rule;
+        int cost;
+        int need;
+
+        Label(int rule, int cost, int need) {
+            this.rule = rule;
+            this.cost = cost;
+            this.need = need;
+        }
+    }
+
+    // the labels of the tree being selected (null for a node no rule
+    // covers)
+    private static Map<ExpNode, Label> labels = new HashMap<ExpNode, Label>();
+
+    // **********************************************************************
+    // gen
+    //    given:  an expression about to be generated
+    //    do:     if -select is on and the rules cover it, generate code
+    //            pushing its value
+    //    return: true if it did
+    // **********************************************************************
+    public static boolean gen(ExpNode exp) {
+        String reg = genReg(exp);
+        if (reg == null)
+            return false;
+        Codegen.genPush(reg);
+        return true;
+    }
+
+    // **********************************************************************
+    // genReg
+    //    given:  an expression about to be generated
+    //    do:     if -select is on and the rules cover it, generate code
+    //            computing its value
+    //    return: the register holding the value, or null if it did not
+    // **********************************************************************
+    public static String genReg(ExpNode exp) {
+        if (!Codegen.select)
+            return null;
+        Label label = label(exp);
+        String reg = null;
+        if (label != null && label.need <= REGS.length)
+            reg = reduce(exp, 0);
+        labels.clear();
+        return reg;
+    }
+
+    // **********************************************************************
+    // genJump
+    //    given:  a comparison and the labels to go to if it is true or
+    //            false
+    //    do:     if -select is on and the rules cover its operands,
+    //            generate a compare-and-branch on them
+    //    return: true if it did
+    // **********************************************************************
+    public static boolean genJump(BinaryExpNode exp, String trueLabel,
+                                  String falseLabel) {
+        if (!Codegen.select)
+            return false;
+        String op = op(exp);
+        Label left = label(exp.myExp1), right = label(exp.myExp2);
+        Integer c1 = constant(exp.myExp1), c2 = constant(exp.myExp2);
+        boolean covered = left != null && right != null;
+        if (covered) {
+            if (c2 != null)
+                covered = left.need <= REGS.length;
+            else if (c1 != null)
+                covered = right.need <= REGS.length;
+            else
+                covered = needRR(left, right) <= REGS.length;
+        }
+        if (covered) {
+            if (c2 != null)
+                Codegen.generate(BRANCH.get(op), reduce(exp.myExp1, 0),
+                                 operand(c2), trueLabel);
+            else if (c1 != null)
+                Codegen.generate(BRANCH.get(MIRROR.get(op)), reduce(exp.myExp2, 0),
+                                 operand(c1), trueLabel);
+            else {
+                String a = reduce(exp.myExp1, 0);
+                String b = reduce(exp.myExp2, a.equals(REGS[0]) ? 1 : 0);
+                Codegen.generate(BRANCH.get(op), a, b, trueLabel);
+            }
+            Codegen.generate("b", falseLabel);
+        }
+        labels.clear();
+        return covered;
+    }
+
+    // the branch for each comparison, and the comparison with its
+    // operands swapped
+    private static final Map<String, String> BRANCH = new HashMap<String, String>();
+    private static final Map<String, String> MIRROR = new HashMap<String, String>();
+    static {
+        String[][] ops = {
+            { "<", "blt", ">" }, { "<=", "ble", ">=" }, { ">", "bgt", "<" },
+            { ">=", "bge", "<=" }, { "==", "beq", "==" }, { "!=", "bne", "!=" }
+        };
+        for (String[] op : ops) {
+            BRANCH.put(op[0], op[1]);
+            MIRROR.put(op[0], op[2]);
+        }
+    }
+
+    // the operator of a binary node
+    private static String op(ExpNode exp) {
+        if (exp instanceof PlusNode)      return "+";
+        if (exp instanceof MinusNode)     return "-";
+        if (exp instanceof TimesNode)     return "*";
+        if (exp instanceof DivideNode)    return "/";
+        if (exp instanceof AndNode)       return "&&";
+        if (exp instanceof OrNode)        return "||";
+        if (exp instanceof LessNode)      return "<";
+        if (exp instanceof LessEqNode)    return "<=";
+        if (exp instanceof GreaterNode)   return ">";
+        if (exp instanceof GreaterEqNode) return ">=";
+        if (exp instanceof EqualsNode)    return "==";
+        return "!=";
+    }
+
+    // the value of a literal (or a negated one), or null
+    private static Integer constant(ExpNode exp) {
+        if (exp instanceof TrueNode)
+            return 1;
+        if (exp instanceof FalseNode)
+            return 0;
+        return ArithmeticExpNode.constValue(exp);
+    }
+
+    private static boolean fits(long c) {
+        return c >= -32768 && c <= 32767;
+    }
+
+    private static String operand(int c) {
+        return c == 0 ? "$zero" : String.valueOf(c);
+    }
+
+    // **********************************************************************
+    // labeling
+    // **********************************************************************
+
+    private static Label label(ExpNode exp) {
+        if (labels.containsKey(exp))
+            return labels.get(exp);
+        Label label = cover(exp);
+        labels.put(exp, label);
+        return label;
+    }
+
+    private static Label cover(ExpNode exp) {
+        Integer c = constant(exp);
+        if (c != null)
+            return c == 0 ? new Label(ZERO, 0, 0) : new Label(CONST, 1, 1);
+        if (Cse.reusedFrom(exp) != null)
+            return new Label(REUSE, 1, 1);
+        if (exp instanceof IdNode) {
+            IdNode id = (IdNode)exp;
+            Type type = id.sym().getType();
+            if (!type.isIntType() && !type.isBoolType())
+                return null;
+            return id.register() != null ? new Label(REG, 0, 0) : new Label(LOAD, 1, 1);
+        }
+        if (exp instanceof UnaryMinusNode || exp instanceof NotNode) {
+            Label kid = label(((UnaryExpNode)exp).exp());
+            return kid == null ? null : new Label(UNARY, kid.cost + 1, Math.max(kid.need, 1));
+        }
+        if (!(exp instanceof ArithmeticExpNode || exp instanceof LogicalExpNode ||
+              exp instanceof EqualityExpNode || exp instanceof RelationalExpNode))
+            return null;
+
+        BinaryExpNode bin = (BinaryExpNode)exp;
+        String op = op(exp);
+        // the right operand of && and || is evaluated whatever the left
+        // one is, so it must not be able to trap
+        if (exp instanceof LogicalExpNode && mayTrap(bin.myExp2))
+            return null;
+        // -strength divides by a constant better
+        if (op.equals("/") && DivideNode.byShifts(constant(bin.myExp2)))
+            return null;
+        Label left = label(bin.myExp1), right = label(bin.myExp2);
+        if (left == null || right == null)
+            return null;
+
+        int save = Cse.savedAt(exp) != null ? 1 : 0;
+        Label best = new Label(RR, left.cost + right.cost + costRR(bin, op) + save,
+                               needRR(left, right));
+        Integer c1 = constant(bin.myExp1), c2 = constant(bin.myExp2);
+        int cost = c2 == null ? -1 : costRI(bin, op, c2);
+        if (cost >= 0 && left.cost + cost + save < best.cost)
+            best = new Label(RI, left.cost + cost + save, Math.max(left.need, 1));
+        cost = c1 == null ? -1 : costRI(bin, MIRROR.containsKey(op) ? MIRROR.get(op) : op, c1);
+        if (cost >= 0 && !op.equals("-") && !op.equals("/") &&
+            right.cost + cost + save < best.cost)
+            best = new Label(IR, right.cost + cost + save, Math.max(right.need, 1));
+        return best;
+    }
+
+    // the left operand is in REGS[k] if it uses a register, and the right
+    // one is computed in the registers after it
+    private static int needRR(Label left, Label right) {
+        return Math.max(Math.max(left.need, 1),
+                        (left.need > 0 ? 1 : 0) + right.need);
+    }
+
+    // whether exp can stop the program: a divide, a multiply unless -wrap
+    // is on, and an add, addi or sub, which trap on overflow (-wrap only
+    // covers multiplies and divides)
+    private static boolean mayTrap(ExpNode exp) {
+        List<ASTnode> nodes = new LinkedList<ASTnode>();
+        exp.collect(ASTnode.class, nodes);
+        for (ASTnode node : nodes) {
+            if (node instanceof DivideNode ||
+                (node instanceof TimesNode && !Codegen.wrap) ||
+                node instanceof PlusNode || node instanceof MinusNode ||
+                node instanceof UnaryMinusNode)
+                return true;
+        }
+        return false;
+    }
+
+    // the cost of "a op b"
+    private static int costRR(BinaryExpNode exp, String op) {
+        switch (op) {
+            case "*":
+                return Codegen.wrap ? 2 + 4 : 7 + 4;    // mult, mflo / mulo
+            case "/":
+                Integer d = constant(exp.myExp2);
+                if (Codegen.wrap && d != null && d != 0)
+                    return 2 + 4;                       // div, mflo
+                return 4 + 4;                           // div with checks
+            case "<=":
+            case ">=":
+                return 2;                               // slt, xori
+            case "==":
+                return 3;
+            case "!=":
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    // the cost of "a op c" for a constant c, or -1 if no rule does it
+    private static int costRI(BinaryExpNode exp, String op, int c) {
+        switch (op) {
+            case "+":
+                return fits(c) ? 1 : -1;                // addi
+            case "-":
+                return fits(-(long)c) ? 1 : -1;         // addi of -c
+            case "*":
+                return c > 0 && Integer.bitCount(c) == 1 && Codegen.wrap ? 1 : -1;
+            case "&&":
+            case "||":
+                return 1;                               // andi, ori
+            case "<":
+                return fits(c) ? 1 : -1;                // slti
+            case "<=":
+                return fits(c + 1L) ? 1 : -1;           // slti c+1
+            case ">":
+                return fits(c + 1L) ? 2 : -1;           // slti c+1, xori
+            case ">=":
+                return fits(c) ? 2 : -1;                // slti, xori
+            case "==":
+                return fits(c) ? 3 : -1;
+            case "!=":
+                return fits(c) ? 2 : -1;
+            default:
+                return -1;
+        }
+    }
+
+    // **********************************************************************
+    // emission
+    // **********************************************************************
+
+    // generate the code of exp as labeled, using REGS[k] and up; return
+    // the register holding its value
+    private static String reduce(ExpNode exp, int k) {
+        Label label = labels.get(exp);
+        String dst = REGS[k];
+        switch (label.rule) {
+            case ZERO:
+                return "$zero";
+            case CONST:
+                Codegen.generate("li", dst, constant(exp));
+                return dst;
+            case REG:
+                return ((IdNode)exp).register();
+            case LOAD:
+                ((IdNode)exp).genLoad(dst);
+                return dst;
+            case REUSE:
+                Codegen.generateIndexed("lw", dst, Codegen.FP, Cse.reusedFrom(exp),
+                                        "CSE reuse");
+                return dst;
+            case UNARY: {
+                String a = reduce(((UnaryExpNode)exp).exp(), k);
+                if (exp instanceof UnaryMinusNode)
+                    Codegen.generate("sub", dst, "$zero", a);
+                else
+                    Codegen.generate("xori", dst, a, 1);
+                return dst;
+            }
+        }
+
+        BinaryExpNode bin = (BinaryExpNode)exp;
+        String op = op(exp);
+        if (label.rule == RR) {
+            String a = reduce(bin.myExp1, k);
+            String b = reduce(bin.myExp2, a.equals(dst) ? k + 1 : k);
+            emitRR(bin, op, dst, a, b);
+        }
+        else if (label.rule == RI)
+            emitRI(op, dst, reduce(bin.myExp1, k), constant(bin.myExp2));
+        else
+            emitRI(MIRROR.containsKey(op) ? MIRROR.get(op) : op, dst,
+                   reduce(bin.myExp2, k), constant(bin.myExp1));
+
+        Integer save = Cse.savedAt(exp);
+        if (save != null)
+            Codegen.generateIndexed("sw", dst, Codegen.FP, save, "CSE save");
+        return dst;
+    }
+
+    private static void emitRR(BinaryExpNode exp, String op, String dst,
+                               String a, String b) {
+        switch (op) {
+            case "+":
+                Codegen.generate("add", dst, a, b);
+                break;
+            case "-":
+                Codegen.generate("sub", dst, a, b);
+                break;
+            case "*":
+                if (Codegen.wrap) {
+                    Codegen.generate("mult", a, b);
+                    Codegen.generate("mflo", dst);
+                }
+                else
+                    Codegen.generate("mulo", dst, a, b);
+                break;
+            case "/":
+                Integer d = constant(exp.myExp2);
+                if (Codegen.wrap && d != null && d != 0) {
+                    Codegen.generate("div", a, b);
+                    Codegen.generate("mflo", dst);
+                }
+                else
+                    Codegen.generate("div", dst, a, b);
+                break;
+            case "&&":
+                Codegen.generate("and", dst, a, b);
+                break;
+            case "||":
+                Codegen.generate("or", dst, a, b);
+                break;
+            case "<":
+                Codegen.generate("slt", dst, a, b);
+                break;
+            case ">":
+                Codegen.generate("slt", dst, b, a);
+                break;
+            case "<=":
+                Codegen.generate("slt", dst, b, a);
+                Codegen.generate("xori", dst, dst, 1);
+                break;
+            case ">=":
+                Codegen.generate("slt", dst, a, b);
+                Codegen.generate("xori", dst, dst, 1);
+                break;
+            case "==":
+                Codegen.generate("seq", dst, a, b);
+                break;
+            default:
+                Codegen.generate("sne", dst, a, b);
+                break;
+        }
+    }
+
+    private static void emitRI(String op, String dst, String a, int c) {
+        switch (op) {
+            case "+":
+                Codegen.generate("addi", dst, a, c);
+                break;
+            case "-":
+                Codegen.generate("addi", dst, a, -c);
+                break;
+            case "*":
+                Codegen.generate("sll", dst, a, Integer.numberOfTrailingZeros(c));
+                break;
+            case "&&":
+                Codegen.generate("andi", dst, a, c);
+                break;
+            case "||":
+                Codegen.generate("ori", dst, a, c);
+                break;
+            case "<":
+                Codegen.generate("slti", dst, a, c);
+                break;
+            case "<=":
+                Codegen.generate("slti", dst, a, c + 1);
+                break;
+            case ">":
+                Codegen.generate("slti", dst, a, c + 1);
+                Codegen.generate("xori", dst, dst, 1);
+                break;
+            case ">=":
+                Codegen.generate("slti", dst, a, c);
+                Codegen.generate("xori", dst, dst, 1);
+                break;
+            case "==":
+                Codegen.generate("seq", dst, a, c);
+                break;
+            default:
+                Codegen.generate("sne", dst, a, c);
+                break;
+        }
+    }
+}
@@ -8,6 +8,7 @@ public class SemSym {
     private Type type;
     private int offset = -1;
 	private boolean isGlobal = false;
+	private String register = null;
     
     public SemSym(Type type) {
         this.type = type;
@@ -20,6 +21,7 @@ public class SemSym {
     public String toString() {
         return type.toString();
     }
+    // the offset of a local or formal from FP, or of a global from GP
     public void setOffset(int offset){
 		this.offset = offset;
 	}
@@ -35,6 +37,18 @@ public class SemSym {
 	public boolean isGlobal(){
 		return isGlobal;
 	}
+
+	/**
+	 * While code is generated for the function a local or formal belongs
+	 * to, it may be kept in a register instead of its frame slot.
+	 */
+	public void setRegister(String register){
+		this.register = register;
+	}
+
+	public String getRegister(){
+		return register;
+	}
 }
 
 /**
@@ -47,6 +61,11 @@ class FnSym extends SemSym {
     private Type returnType;
     private int numParams;
     private List<Type> paramTypes;
+
+    // call graph information, filled in before code generation
+    private FnDeclNode decl;
+    private int size;
+    private List<FnSym> callees = new LinkedList<FnSym>();
     
     public FnSym(Type type, int numparams) {
         super(new FnType());
@@ -54,6 +73,51 @@ class FnSym extends SemSym {
         numParams = numparams;
     }
 
+    public void setDecl(FnDeclNode decl) {
+        this.decl = decl;
+    }
+
+    public FnDeclNode getDecl() {
+        return decl;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Return the number of AST nodes in the body of the function.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public void addCallee(FnSym callee) {
+        if (!callees.contains(callee))
+            callees.add(callee);
+    }
+
+    public List<FnSym> getCallees() {
+        return callees;
+    }
+
+    /**
+     * Return true if this function can (directly or indirectly) call itself.
+     */
+    public boolean isRecursive() {
+        return reaches(this, new HashSet<FnSym>());
+    }
+
+    private boolean reaches(FnSym target, Set<FnSym> visited) {
+        for (FnSym callee : callees) {
+            if (callee == target)
+                return true;
+            if (visited.add(callee) && callee.reaches(target, visited))
+                return true;
+        }
+        return false;
+    }
+
     public void addFormals(List<Type> L) {
         paramTypes = L;
     }
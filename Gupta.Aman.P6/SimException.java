@@ -0,0 +1,7 @@
+// thrown by MipsSim when the program being simulated does something it
+// cannot (an unknown instruction, a bad address, division by zero, ...)
+public class SimException extends RuntimeException {
+    public SimException(String msg) {
+        super(msg);
+    }
+}
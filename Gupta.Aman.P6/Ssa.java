@@ -0,0 +1,303 @@
+import java.util.*;
+
+// **********************************************************************
+// The Ssa class puts the control-flow graph of a function (see Cfg) in
+// static single assignment form, and takes it back out again.
+//
+// build finds the dominator tree of the graph (with the iterative
+// algorithm of Cooper, Harvey and Kennedy) and the dominance frontier of
+// each block.  Each local, formal and temporary that is live on entry to
+// some block gets a phi at the blocks in the iterated frontier of the
+// blocks that assign it, and a walk of the dominator tree then renames
+// every definition to a new version of its variable and every use to the
+// version that reaches it.  Phis whose value is never used are dropped.
+// Globals live in memory, where a call may change them, so they are
+// left out.
+//
+// destruct renames each version back to the variable it is a version of
+// and drops the phis; a phi operand that is not a version of the phi's
+// own variable (a constant put there by Sccp) becomes a copy on the edge
+// it comes in by.  That is only right while no two versions of a
+// variable are live at once, which is how build leaves the graph: the
+// optimizations run on it may replace uses by constants and remove
+// blocks and edges, but must not move a use past another definition.
+// **********************************************************************
+
+public class Ssa {
+    // **********************************************************************
+    // build
+    //    given:  a finished graph
+    //    do:     put it in SSA form
+    // **********************************************************************
+    public static void build(Cfg cfg) {
+        dominators(cfg);
+        insertPhis(cfg);
+        rename(cfg.entry, new HashMap<Cfg.Var, Deque<Cfg.Var>>(),
+               new HashMap<Cfg.Var, Integer>());
+        removeDeadPhis(cfg);
+    }
+
+    // **********************************************************************
+    // dominators
+    //    given:  a finished graph
+    //    do:     set the idom, kids and frontier of each block
+    // **********************************************************************
+    public static void dominators(Cfg cfg) {
+        List<Cfg.Block> order = reversePostorder(cfg);
+        Map<Cfg.Block, Integer> number = new HashMap<Cfg.Block, Integer>();
+        for (Cfg.Block b : order) {
+            number.put(b, number.size());
+            b.idom = null;
+            b.kids.clear();
+            b.frontier.clear();
+        }
+
+        cfg.entry.idom = cfg.entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Cfg.Block b : order) {
+                if (b == cfg.entry)
+                    continue;
+                Cfg.Block idom = null;
+                for (Cfg.Block p : b.preds) {
+                    if (p.idom == null)
+                        continue;       // not reached yet in this pass
+                    if (idom == null)
+                        idom = p;
+                    else {
+                        Cfg.Block a = p;
+                        while (a != idom) {
+                            while (number.get(a) > number.get(idom))
+                                a = a.idom;
+                            while (number.get(idom) > number.get(a))
+                                idom = idom.idom;
+                        }
+                    }
+                }
+                if (idom != b.idom) {
+                    b.idom = idom;
+                    changed = true;
+                }
+            }
+        }
+        cfg.entry.idom = null;
+
+        for (Cfg.Block b : order) {
+            if (b.idom != null)
+                b.idom.kids.add(b);
+            if (b.preds.size() < 2)
+                continue;
+            for (Cfg.Block p : b.preds) {
+                for (Cfg.Block runner = p; runner != b.idom; runner = runner.idom)
+                    runner.frontier.add(b);
+            }
+        }
+    }
+
+    private static List<Cfg.Block> reversePostorder(Cfg cfg) {
+        List<Cfg.Block> order = new ArrayList<Cfg.Block>();
+        Set<Cfg.Block> seen = new HashSet<Cfg.Block>();
+        postorder(cfg.entry, seen, order);
+        Collections.reverse(order);
+        return order;
+    }
+
+    private static void postorder(Cfg.Block b, Set<Cfg.Block> seen,
+                                  List<Cfg.Block> order) {
+        seen.add(b);
+        for (Cfg.Block s : b.succs) {
+            if (!seen.contains(s))
+                postorder(s, seen, order);
+        }
+        order.add(b);
+    }
+
+    // true if v is renamed into versions
+    private static boolean renamed(Cfg.Operand v) {
+        return v instanceof Cfg.Var && !((Cfg.Var)v).isGlobal();
+    }
+
+    // the operands the branch or return ending b reads
+    private static List<Cfg.Operand> endOperands(Cfg.Block b) {
+        List<Cfg.Operand> uses = new ArrayList<Cfg.Operand>(2);
+        if (b.left != null)
+            uses.add(b.left);
+        if (b.right != null)
+            uses.add(b.right);
+        return uses;
+    }
+
+    private static void insertPhis(Cfg cfg) {
+        // the variables live on entry to some block, and where each
+        // variable is assigned
+        Set<Cfg.Var> live = new LinkedHashSet<Cfg.Var>();
+        Map<Cfg.Var, Set<Cfg.Block>> defs = new HashMap<Cfg.Var, Set<Cfg.Block>>();
+        for (Cfg.Block b : cfg.blocks) {
+            Set<Cfg.Var> assigned = new HashSet<Cfg.Var>();
+            for (Cfg.Instr instr : b.instrs) {
+                for (Cfg.Operand arg : instr.args) {
+                    if (renamed(arg) && !assigned.contains(arg))
+                        live.add((Cfg.Var)arg);
+                }
+                if (instr.dst != null && renamed(instr.dst)) {
+                    assigned.add(instr.dst);
+                    if (!defs.containsKey(instr.dst))
+                        defs.put(instr.dst, new LinkedHashSet<Cfg.Block>());
+                    defs.get(instr.dst).add(b);
+                }
+            }
+            for (Cfg.Operand arg : endOperands(b)) {
+                if (renamed(arg) && !assigned.contains(arg))
+                    live.add((Cfg.Var)arg);
+            }
+        }
+
+        for (Cfg.Var v : live) {
+            if (!defs.containsKey(v))
+                continue;
+            Set<Cfg.Block> hasPhi = new HashSet<Cfg.Block>();
+            Deque<Cfg.Block> work = new ArrayDeque<Cfg.Block>(defs.get(v));
+            while (!work.isEmpty()) {
+                for (Cfg.Block d : work.pop().frontier) {
+                    if (!hasPhi.add(d))
+                        continue;
+                    Cfg.Operand[] args = new Cfg.Operand[d.preds.size()];
+                    Arrays.fill(args, v);
+                    d.instrs.add(0, new Cfg.Instr("phi", v, args));
+                    if (!defs.get(v).contains(d))
+                        work.push(d);
+                }
+            }
+        }
+    }
+
+    // rename the definitions and uses in b and the blocks it dominates;
+    // stacks holds the versions of each variable that reach b, newest
+    // first, and last the number of versions made of each
+    private static void rename(Cfg.Block b, Map<Cfg.Var, Deque<Cfg.Var>> stacks,
+                               Map<Cfg.Var, Integer> last) {
+        List<Cfg.Var> pushed = new ArrayList<Cfg.Var>();
+        for (Cfg.Instr instr : b.instrs) {
+            if (!instr.op.equals("phi")) {
+                for (int k = 0; k < instr.args.length; k++)
+                    instr.args[k] = reaching(instr.args[k], stacks);
+            }
+            if (instr.dst != null && renamed(instr.dst)) {
+                Cfg.Var v = instr.dst.orig;
+                Integer n = last.get(v);
+                n = n == null ? 1 : n + 1;
+                last.put(v, n);
+                instr.dst = v.newVersion(n);
+                if (!stacks.containsKey(v))
+                    stacks.put(v, new ArrayDeque<Cfg.Var>());
+                stacks.get(v).push(instr.dst);
+                pushed.add(v);
+            }
+        }
+        b.left = reaching(b.left, stacks);
+        b.right = reaching(b.right, stacks);
+
+        for (Cfg.Block s : b.succs) {
+            for (int k = 0; k < s.preds.size(); k++) {
+                if (s.preds.get(k) != b)
+                    continue;
+                for (Cfg.Instr instr : s.instrs) {
+                    if (!instr.op.equals("phi"))
+                        break;
+                    instr.args[k] = reaching(instr.dst.orig, stacks);
+                }
+            }
+        }
+
+        for (Cfg.Block kid : b.kids)
+            rename(kid, stacks, last);
+        for (Cfg.Var v : pushed)
+            stacks.get(v).pop();
+    }
+
+    // the version of value that reaches the current point of the walk
+    private static Cfg.Operand reaching(Cfg.Operand value,
+                                       Map<Cfg.Var, Deque<Cfg.Var>> stacks) {
+        if (!renamed(value))
+            return value;
+        Deque<Cfg.Var> stack = stacks.get(((Cfg.Var)value).orig);
+        if (stack == null || stack.isEmpty())
+            return ((Cfg.Var)value).orig;   // its value on entry
+        return stack.peek();
+    }
+
+    // **********************************************************************
+    // removeDeadPhis
+    //    given:  a graph in SSA form
+    //    do:     drop the phis whose value is never used
+    // **********************************************************************
+    public static void removeDeadPhis(Cfg cfg) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Set<Cfg.Operand> used = new HashSet<Cfg.Operand>();
+            for (Cfg.Block b : cfg.blocks) {
+                for (Cfg.Instr instr : b.instrs)
+                    used.addAll(Arrays.asList(instr.args));
+                used.addAll(endOperands(b));
+            }
+            for (Cfg.Block b : cfg.blocks) {
+                Iterator<Cfg.Instr> it = b.instrs.iterator();
+                while (it.hasNext()) {
+                    Cfg.Instr instr = it.next();
+                    if (instr.op.equals("phi") && !used.contains(instr.dst)) {
+                        it.remove();
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    // **********************************************************************
+    // destruct
+    //    given:  a graph in SSA form
+    //    do:     rename each version back to its variable and drop the
+    //            phis, copying the operands that are not versions of it
+    // **********************************************************************
+    public static void destruct(Cfg cfg) {
+        for (Cfg.Block b : new ArrayList<Cfg.Block>(cfg.blocks)) {
+            for (Cfg.Instr instr : b.instrs) {
+                if (!instr.op.equals("phi"))
+                    break;
+                Cfg.Var v = instr.dst.orig;
+                for (int k = 0; k < instr.args.length; k++) {
+                    Cfg.Operand arg = instr.args[k];
+                    if (arg instanceof Cfg.Var && ((Cfg.Var)arg).orig == v)
+                        continue;
+                    Cfg.Block from = b.preds.get(k);
+                    if (from.succs.size() > 1)
+                        from = cfg.splitEdge(from, b);
+                    from.instrs.add(new Cfg.Instr("move", v, new Cfg.Operand[] { arg }));
+                }
+            }
+        }
+
+        for (Cfg.Block b : cfg.blocks) {
+            Iterator<Cfg.Instr> it = b.instrs.iterator();
+            while (it.hasNext()) {
+                Cfg.Instr instr = it.next();
+                if (instr.op.equals("phi")) {
+                    it.remove();
+                    continue;
+                }
+                if (instr.dst != null)
+                    instr.dst = instr.dst.orig;
+                for (int k = 0; k < instr.args.length; k++)
+                    instr.args[k] = original(instr.args[k]);
+            }
+            b.left = original(b.left);
+            b.right = original(b.right);
+        }
+    }
+
+    private static Cfg.Operand original(Cfg.Operand value) {
+        return value instanceof Cfg.Var ? ((Cfg.Var)value).orig : value;
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.*;
+
+// **********************************************************************
+// The StringPool class holds the string constants of one compilation, so
+// that they are all written together in a single data section at the
+// end of the output, instead of switching to .data and back wherever a
+// string literal is used.
+//
+// A constant is added by its value (with the escapes replaced) and gets
+// a label the code loads its address from.  Equal strings share one
+// copy, and so does a string that another one ends with: its label is
+// put in the middle of the longer string, which is written in pieces
+// with .ascii, only the last one with .asciiz.  The longest strings are
+// found by sorting the strings by their reversed text, where one that
+// ends another comes right before the next string ending with it.
+// **********************************************************************
+
+public class StringPool {
+    // the label of each string, in the order they were added
+    private Map<String, String> labels = new LinkedHashMap<String, String>();
+
+    // **********************************************************************
+    // label
+    //    given:  the value of a string constant
+    //    return: the label of its copy in the pool, adding it if needed
+    // **********************************************************************
+    public String label(String value) {
+        String label = labels.get(value);
+        if (label == null) {
+            label = Codegen.nextLabel();
+            labels.put(value, label);
+        }
+        return label;
+    }
+
+    // **********************************************************************
+    // gen
+    //    do:     write the data section holding the strings
+    // **********************************************************************
+    public void gen() {
+        if (labels.isEmpty())
+            return;
+
+        List<String> byTail = new ArrayList<String>(labels.keySet());
+        Collections.sort(byTail, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return reverse(a).compareTo(reverse(b));
+            }
+        });
+
+        // the strings each string that no other ends with holds, longest
+        // first
+        Map<String, String> holder = new HashMap<String, String>();
+        Map<String, List<String>> held = new HashMap<String, List<String>>();
+        for (int k = byTail.size() - 1; k >= 0; k--) {
+            String s = byTail.get(k);
+            String next = k + 1 < byTail.size() ? byTail.get(k + 1) : null;
+            String h = next != null && next.endsWith(s) ? holder.get(next) : s;
+            holder.put(s, h);
+            if (!held.containsKey(h))
+                held.put(h, new ArrayList<String>());
+            held.get(h).add(s);
+        }
+
+        Codegen.generate(".data");
+        for (String s : labels.keySet()) {
+            List<String> tails = held.get(s);
+            if (tails == null)
+                continue;
+            for (int k = 0; k < tails.size(); k++) {
+                String tail = tails.get(k);
+                boolean last = k + 1 == tails.size();
+                String piece = last ? tail
+                               : tail.substring(0, tail.length() - tails.get(k + 1).length());
+                Codegen.generateLabeled(labels.get(tail), last ? ".asciiz " : ".ascii ",
+                                        "string lit", quote(piece));
+            }
+        }
+    }
+
+    private static String reverse(String s) {
+        return new StringBuilder(s).reverse().toString();
+    }
+
+    // the string as a string literal (of CFlat or of the assembler)
+    public static String quote(String s) {
+        StringBuilder lit = new StringBuilder("\"");
+        for (int k = 0; k < s.length(); k++) {
+            char c = s.charAt(k);
+            if (c == '\n')
+                lit.append("\\n");
+            else if (c == '\t')
+                lit.append("\\t");
+            else if (c == '"' || c == '\\')
+                lit.append('\\').append(c);
+            else
+                lit.append(c);
+        }
+        return lit.append('"').toString();
+    }
+}
@@ -114,6 +114,31 @@ abstract class ASTnode {
     protected void doIndent(PrintWriter p, int indent) {
         for (int k=0; k<indent; k++) p.print(" ");
     }
+
+    // nodes with children add them to the given list, in the order in which
+    // they are evaluated; whole-tree passes (e.g., building the call graph)
+    // use this instead of a new method in every subclass
+    public void addKids(List<ASTnode> kids) { }
+
+    // add every node of class c in the subtree rooted here to found
+    public <T extends ASTnode> void collect(Class<T> c, List<T> found) {
+        if (c.isInstance(this))
+            found.add(c.cast(this));
+        List<ASTnode> kids = new LinkedList<ASTnode>();
+        addKids(kids);
+        for (ASTnode kid : kids)
+            kid.collect(c, found);
+    }
+
+    // number of nodes in the subtree rooted here
+    public int treeSize() {
+        List<ASTnode> kids = new LinkedList<ASTnode>();
+        addKids(kids);
+        int size = 1;
+        for (ASTnode kid : kids)
+            size += kid.treeSize();
+        return size;
+    }
     
     static boolean hasMainFn = false;
 	static boolean isGlobal = false;
@@ -155,18 +180,57 @@ class ProgramNode extends ASTnode {
         myDeclList.unparse(p, indent);
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myDeclList);
+    }
+
     // 1 kid
     private DeclListNode myDeclList;
 
 	
 	public void codeGen(PrintWriter p) {
 		Codegen.p = p;
+		if (Codegen.fuseWrites) {
+			List<StmtListNode> stmtLists = new LinkedList<StmtListNode>();
+			collect(StmtListNode.class, stmtLists);
+			for (StmtListNode stmtList : stmtLists)
+				stmtList.fuseWrites();
+		}
+		Codegen.strings = new StringPool();
+		List<StringLitNode> lits = new LinkedList<StringLitNode>();
+		collect(StringLitNode.class, lits);
+		for (StringLitNode lit : lits)
+			Codegen.strings.label(lit.value());
+		myDeclList.buildCallGraph();
+		myDeclList.genGlobals();
 		myDeclList.codeGen();
+		MipsRuntime.gen();
+		Codegen.strings.gen();
 	}
 	
 	public void codeGen() {
 		
 	}
+
+	/**
+	 * jvmGen
+	 * Generate the JVM class className for this program and return the
+	 * bytes of its class file.
+	 */
+	public byte[] jvmGen(String className) {
+		JvmGen.begin(className);
+		myDeclList.jvmGen();
+		return JvmGen.finish();
+	}
+	
+	/**
+	 * interpret
+	 * Compile this program for Interp and return its main.
+	 */
+	public Interp.Function interpret() {
+		myDeclList.interpret();
+		return Interp.function(Interp.main);
+	}
 }
 
 class DeclListNode extends ASTnode {
@@ -231,6 +295,10 @@ class DeclListNode extends ASTnode {
         }
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.addAll(myDecls);
+    }
+
     // list of kids (DeclNodes)
     private List<DeclNode> myDecls;
     private int declListOffset = -1;
@@ -239,11 +307,62 @@ class DeclListNode extends ASTnode {
 	@Override
 	public void codeGen() {
 		if(myDecls != null) {
-			for(DeclNode node : myDecls) {
+			List<DeclNode> decls = myDecls;
+			
+			// with a profile, the functions run most often are put first
+			// so that the hot code is together
+			if (Profile.isUsed()) {
+				decls = new ArrayList<DeclNode>(myDecls);
+				Collections.sort(decls, new Comparator<DeclNode>() {
+					public int compare(DeclNode a, DeclNode b) {
+						return Long.compare(heat(b), heat(a));
+					}
+				});
+			}
+			for(DeclNode node : decls) {
 				node.codeGen();
 			}
 		}	
 	}
+	
+	/**
+	 * genGlobals
+	 * Lay out the global variables of the program one after the other in
+	 * a single data section, giving each its offset from GP.
+	 */
+	public void genGlobals() {
+		int size = 0;
+		for (DeclNode node : myDecls) {
+			if (!(node instanceof VarDeclNode) || !((VarDeclNode)node).sym().isGlobal())
+				continue;
+			if (size == 0) {
+				Codegen.generate(".data");
+				Codegen.generate(".align 2");
+				Codegen.genLabel(Codegen.GLOBALS);
+			}
+			((VarDeclNode)node).genGlobal(size);
+			size += 4;
+		}
+		Codegen.globalsSize = size;
+	}
+	
+	private static long heat(DeclNode decl) {
+		if (decl instanceof FnDeclNode)
+			return ((FnDeclNode)decl).profileCount();
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * buildCallGraph
+	 * Record the callees of every function declared in this list.
+	 */
+	public void buildCallGraph() {
+		for (DeclNode node : myDecls) {
+			if (node instanceof FnDeclNode)
+				((FnDeclNode)node).buildCallGraph();
+		}
+	}
+
 	public void setOffset(int declListOffset){
 		this.declListOffset = declListOffset;
 	}
@@ -253,9 +372,18 @@ class DeclListNode extends ASTnode {
 	}
 		
 	public int getSize(){
-		return this.curOffset - this.declListOffset;
+		return this.declListOffset - this.curOffset;
+	}
+	
+	public void jvmGen() {
+		for (DeclNode node : myDecls)
+			node.jvmGen();
 	}
 	
+	public void interpret() {
+		for (DeclNode node : myDecls)
+			node.interpret();
+	}
 }
 
 class FormalsListNode extends ASTnode {
@@ -274,23 +402,49 @@ class FormalsListNode extends ASTnode {
         List<Type> typeList = new LinkedList<Type>();
         isGlobal = false;
         curOffset = formalsListOffset;
+        // formals passed in registers get their slots after the saved
+        // RA and FP, where the callee can spill them
+        int numRegs = myFormals.size() - numOnStack();
+        int k = 0;
         for (FormalDeclNode node : myFormals) {
             SemSym sym = node.nameAnalysis(symTab);
-            node.setOffset(curOffset);
-			curOffset -= 4;
+            if (k < numRegs) {
+                node.setOffset(formalsListOffset - numOnStack()*4 - 8 - k*4);
+            }
+            else {
+                node.setOffset(curOffset);
+			    curOffset -= 4;
+            }
             if (sym != null) {
                 typeList.add(sym.getType());
             }
+            k++;
         }
         return typeList;
     }    
     
+    /**
+     * Return the number of formals the caller passes on the stack.
+     */
+    public int numOnStack() {
+        if (Codegen.regArgs)
+            return Math.max(0, myFormals.size() - Codegen.ARGS.length);
+        return myFormals.size();
+    }
+    
     /**
      * Return the number of formals in this list.
      */
     public int length() {
         return myFormals.size();
     }
+
+    /**
+     * Return the formal at position k (the first formal is 0).
+     */
+    public FormalDeclNode get(int k) {
+        return myFormals.get(k);
+    }
     
     public void unparse(PrintWriter p, int indent) {
         Iterator<FormalDeclNode> it = myFormals.iterator();
@@ -303,6 +457,10 @@ class FormalsListNode extends ASTnode {
         } 
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.addAll(myFormals);
+    }
+
     // list of kids (FormalDeclNodes)
     private List<FormalDeclNode> myFormals;
     private int formalsListOffset = 0;
@@ -357,6 +515,11 @@ class FnBodyNode extends ASTnode {
         myStmtList.unparse(p, indent);
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myDeclList);
+        kids.add(myStmtList);
+    }
+
     // 2 kids
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
@@ -384,6 +547,17 @@ class FnBodyNode extends ASTnode {
 		return myDeclList.getSize() + myStmtList.getSize();
 	}
 	
+	public void jvmGen(String retLab) {
+		myStmtList.jvmGen(retLab);
+	}
+	
+	public Interp.Stmt closure() {
+		return myStmtList.closure();
+	}
+	
+	public void cfgGen(Cfg cfg) {
+		myStmtList.cfgGen(cfg);
+	}
 }
 
 class StmtListNode extends ASTnode {
@@ -399,11 +573,7 @@ class StmtListNode extends ASTnode {
 		if(myStmts != null) {
 			for (StmtNode node : myStmts)
 			{
-				if (node instanceof ReturnStmtNode) {
-					((ReturnStmtNode)node).codeGen(retLab);
-				}
-				else
-					node.codeGen();
+				node.codeGen(retLab);
 			}
 		}
 	}
@@ -437,6 +607,45 @@ class StmtListNode extends ASTnode {
         }
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.addAll(myStmts);
+    }
+
+	/**
+	 * fuseWrites
+	 * Replace each run of two or more writes whose text is known at compile
+	 * time with a single write of the string they print together.
+	 */
+	public void fuseWrites() {
+		List<StmtNode> stmts = new ArrayList<StmtNode>();
+		List<WriteStmtNode> run = new ArrayList<WriteStmtNode>();
+		StringBuilder text = new StringBuilder();
+		for (StmtNode stmt : myStmts) {
+			String s = stmt instanceof WriteStmtNode
+			           ? ((WriteStmtNode)stmt).constantText() : null;
+			if (s != null) {
+				run.add((WriteStmtNode)stmt);
+				text.append(s);
+				continue;
+			}
+			addRun(stmts, run, text);
+			stmts.add(stmt);
+		}
+		addRun(stmts, run, text);
+		myStmts.clear();
+		myStmts.addAll(stmts);
+	}
+
+	private static void addRun(List<StmtNode> stmts, List<WriteStmtNode> run,
+	                           StringBuilder text) {
+		if (run.size() == 1)
+			stmts.add(run.get(0));
+		else if (run.size() > 1)
+			stmts.add(run.get(0).writing(text.toString()));
+		run.clear();
+		text.setLength(0);
+	}
+
     // list of kids (StmtNodes)
     private List<StmtNode> myStmts;
     private int stmtListOffset = 0;
@@ -451,9 +660,34 @@ class StmtListNode extends ASTnode {
 	}
 	
 	public int getSize(){
-		return this.curOffset - this.stmtListOffset;
+		return this.stmtListOffset - this.curOffset;
+	}
+	
+	public void jvmGen(String retLab) {
+		for (StmtNode node : myStmts)
+			node.jvmGen(retLab);
+	}
+	
+	public Interp.Stmt closure() {
+		final Interp.Stmt[] stmts = new Interp.Stmt[myStmts.size()];
+		int k = 0;
+		for (StmtNode node : myStmts)
+			stmts[k++] = node.closure();
+		if (stmts.length == 1)
+			return stmts[0];
+		return f -> {
+			for (Interp.Stmt stmt : stmts) {
+				if (stmt.exec(f))
+					return true;
+			}
+			return false;
+		};
 	}
 	
+	public void cfgGen(Cfg cfg) {
+		for (StmtNode node : myStmts)
+			node.cfgGen(cfg);
+	}
 }
 
 class ExpListNode extends ASTnode {
@@ -465,6 +699,10 @@ class ExpListNode extends ASTnode {
         return myExps.size();
     }
     
+    public ExpNode get(int k) {
+        return myExps.get(k);
+    }
+    
     /**
      * nameAnalysis
      * Given a symbol table symTab, process each exp in the list.
@@ -510,6 +748,11 @@ class ExpListNode extends ASTnode {
         } 
     }
 
+    public void addKids(List<ASTnode> kids) {
+        if (myExps != null)
+            kids.addAll(myExps);
+    }
+
     // list of kids (ExpNodes)
     private List<ExpNode> myExps;
 
@@ -522,6 +765,32 @@ class ExpListNode extends ASTnode {
 		}
 		
 	}
+
+	public void jvmGen() {
+		if (myExps != null) {
+			for (ExpNode node : myExps)
+				node.jvmGen();
+		}
+	}
+	
+	public Interp.Exp[] closures() {
+		Interp.Exp[] exps = new Interp.Exp[myExps == null ? 0 : myExps.size()];
+		for (int k = 0; k < exps.length; k++)
+			exps[k] = myExps.get(k).closure();
+		return exps;
+	}
+	
+	// the operands of the values, each kept from changing while the ones
+	// after it are evaluated
+	public Cfg.Operand[] cfgGen(Cfg cfg) {
+		Cfg.Operand[] values = new Cfg.Operand[myExps == null ? 0 : myExps.size()];
+		for (int k = 0; k < values.length; k++) {
+			values[k] = myExps.get(k).cfgGen(cfg);
+			for (int j = k + 1; j < values.length; j++)
+				values[k] = cfg.keep(values[k], myExps.get(j));
+		}
+		return values;
+	}
 }
 
 // **********************************************************************
@@ -536,6 +805,13 @@ abstract class DeclNode extends ASTnode {
 
     // default version of typeCheck for non-function decls
     public void typeCheck() { }
+
+    // JVM code for the declaration; only globals and functions have any
+    public void jvmGen() { }
+
+    // prepare the declaration for Interp; only globals and functions
+    // need anything
+    public void interpret() { }
 }
 
 class VarDeclNode extends DeclNode {
@@ -639,11 +915,16 @@ class VarDeclNode extends DeclNode {
 
 	@Override
 	public void codeGen() {
-		if(myId.sym().isGlobal() == true){
-			Codegen.generate(".data");
-			Codegen.generate(".align 2");
-			Codegen.generateLabeled("_"+ myId.name(), ".space 4",null);	
-		}
+		// globals are laid out together by DeclListNode.genGlobals
+	}
+	
+	/**
+	 * genGlobal
+	 * Reserve the space of this global at the given offset from GP.
+	 */
+	public void genGlobal(int offset) {
+		myId.setOffset(offset);
+		Codegen.generateLabeled("_"+ myId.name(), ".space 4",null);
 	}
 	
 
@@ -656,6 +937,25 @@ class VarDeclNode extends DeclNode {
 	}
 
 	
+	public SemSym sym() {
+		return myId.sym();
+	}
+	
+	public boolean isStruct() {
+		return myType instanceof StructNode;
+	}
+	
+	@Override
+	public void jvmGen() {
+		if (myId.sym().isGlobal() && !isStruct())
+			JvmGen.addField(myId.name());
+	}
+	
+	@Override
+	public void interpret() {
+		if (myId.sym().isGlobal() && !isStruct())
+			Interp.addGlobal(myId.sym());
+	}
 }
 
 class FnDeclNode extends DeclNode {
@@ -751,47 +1051,468 @@ class FnDeclNode extends DeclNode {
         p.println("}\n");
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myFormalsList);
+        kids.add(myBody);
+    }
+
     // 4 kids
     private TypeNode myType;
     private IdNode myId;
     private FormalsListNode myFormalsList;
     private FnBodyNode myBody;
+    private int myInlineArea = -1;
+    private int myCseSize = -1;
+    private List<Integer> myRegFormals;
+    private String myTailLabel;
+    
+    // the function whose body is being generated (null in inlined code)
+    private static FnDeclNode current = null;
 	
-	public void codeGen() {
-		Codegen.generate(".text");
+	public static FnDeclNode current() {
+		return current;
+	}
+	
+	public boolean isMain() {
+		return myId.name().equals("main");
+	}
+	
+	public int numOnStack() {
+		return myFormalsList.numOnStack();
+	}
+	
+	/**
+	 * Return the label just after the prologue, where a self tail call
+	 * jumps back to.
+	 */
+	public String tailLabel() {
+		return myTailLabel;
+	}
+	
+	/**
+	 * genTailExit
+	 * Pop this function's frame but leave its stack actuals in place, so
+	 * that SP and RA are as they were on entry.
+	 */
+	public void genTailExit() {
+		int formalsSize = myFormalsList.numOnStack()*4;
+		Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, -formalsSize, "Load ra");
+		Codegen.generateWithComment("move", "Save control link", Codegen.T0, Codegen.FP);
+		Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -formalsSize-4, "Restore FP");
+		Codegen.generate("subu", Codegen.SP, Codegen.T0, formalsSize);
+	}
+	
+	/**
+	 * buildCallGraph
+	 * Record this function's declaration, size and callees in its FnSym.
+	 */
+	public void buildCallGraph() {
+		FnSym sym = (FnSym)myId.sym();
+		sym.setDecl(this);
+		sym.setSize(myBody.treeSize());
 		
-		if(myId.name().equals("main")) {
-			Codegen.generate(".globl main");
-			Codegen.genLabel("main");
-			Codegen.genLabel("__start");
+		List<CallExpNode> calls = new LinkedList<CallExpNode>();
+		myBody.collect(CallExpNode.class, calls);
+		for (CallExpNode call : calls)
+			sym.addCallee(call.fnSym());
+	}
+	
+	/**
+	 * canInline
+	 * Small functions that can never call themselves have their bodies
+	 * expanded at the call sites.  With a profile, functions up to
+	 * HOT_INLINE times larger are expanded at hot calls, and none at
+	 * calls that never ran.
+	 */
+	public boolean canInline(CallExpNode call) {
+		FnSym sym = (FnSym)myId.sym();
+		if (myId.name().equals("main") || sym.isRecursive())
+			return false;
+		if (Profile.isUsed()) {
+			if (Profile.isHotCall(call.lineNum(), call.charNum()))
+				return sym.getSize() <= Codegen.inlineBudget * HOT_INLINE;
+			if (Profile.count("call", call.lineNum(), call.charNum()) == 0)
+				return false;
+		}
+		return Codegen.inline && sym.getSize() <= Codegen.inlineBudget;
+	}
+	
+	private static final int HOT_INLINE = 4;
+	
+	/**
+	 * Return the number of times the profile says this function was entered.
+	 */
+	public long profileCount() {
+		return Profile.count("fn", myId.lineNum(), myId.charNum());
+	}
+	
+	/**
+	 * Return true if this function makes no calls (so RA need not be saved).
+	 * With -bufout, cout and cin call MipsRuntime too, and with -bufin, cin.
+	 */
+	public boolean isLeaf() {
+		if (!Codegen.leafOpt || !((FnSym)myId.sym()).getCallees().isEmpty())
+			return false;
+		List<WriteStmtNode> writes = new LinkedList<WriteStmtNode>();
+		List<ReadStmtNode> reads = new LinkedList<ReadStmtNode>();
+		if (Codegen.bufferOut)
+			myBody.collect(WriteStmtNode.class, writes);
+		if (Codegen.bufferOut || Codegen.bufferIn)
+			myBody.collect(ReadStmtNode.class, reads);
+		return writes.isEmpty() && reads.isEmpty();
+	}
+	
+	/**
+	 * Return the positions of the formals that stay in the argument
+	 * registers for the whole body.  With -regargs the first four actuals
+	 * always arrive in A0-A3; with only -leaf the callers of a leaf load
+	 * these into A0-A3 after pushing the actuals.  A formal qualifies if it
+	 * is one of the first four, it is never the target of cin (which needs
+	 * its address), and it is never used after a call (or, for A0, a cout)
+	 * may have overwritten its register.
+	 */
+	public List<Integer> regFormals() {
+		if (myRegFormals == null) {
+			myRegFormals = new LinkedList<Integer>();
+			if (!Codegen.regArgs && !isLeaf())
+				return myRegFormals;
+			
+			List<ReadStmtNode> reads = new LinkedList<ReadStmtNode>();
+			myBody.collect(ReadStmtNode.class, reads);
+			
+			int n = Math.min(myFormalsList.length(), Codegen.ARGS.length);
+			for (int k = 0; k < n; k++) {
+				SemSym sym = myFormalsList.get(k).sym();
+				boolean ok = !usedAfterClobber(myBody, sym, k == 0, new boolean[1]);
+				for (ReadStmtNode read : reads) {
+					if (read.exp() instanceof IdNode &&
+					    ((IdNode)read.exp()).sym() == sym)
+						ok = false;
+				}
+				if (ok)
+					myRegFormals.add(k);
+			}
+		}
+		return myRegFormals;
+	}
+	
+	// walk node in evaluation order and return true if sym is used once
+	// clobbered[0] is set, i.e. after a call or (if a0) a write; a use
+	// anywhere in a loop that clobbers counts, since it comes round again
+	private static boolean usedAfterClobber(ASTnode node, SemSym sym,
+	                                        boolean a0, boolean[] clobbered) {
+		if (node instanceof IdNode)
+			return clobbered[0] && ((IdNode)node).sym() == sym;
+		if (node instanceof WhileStmtNode && clobbers(node, a0)) {
+			List<IdNode> ids = new LinkedList<IdNode>();
+			node.collect(IdNode.class, ids);
+			for (IdNode id : ids) {
+				if (id.sym() == sym)
+					return true;
+			}
 		}
 		
-		else 
-			Codegen.genLabel("_"+myId.name());
+		List<ASTnode> kids = new LinkedList<ASTnode>();
+		node.addKids(kids);
+		for (ASTnode kid : kids) {
+			if (usedAfterClobber(kid, sym, a0, clobbered))
+				return true;
+		}
 		
-		Codegen.genPush(Codegen.RA);
-		Codegen.genPush(Codegen.FP);
-
-		Codegen.generate("addu", Codegen.FP, Codegen.SP, myFormalsList.length()*4+8); 
+		// a call or write happens after its operands are evaluated
+		if (node instanceof CallExpNode || (a0 && node instanceof WriteStmtNode))
+			clobbered[0] = true;
+		return false;
+	}
+	
+	private static boolean clobbers(ASTnode node, boolean a0) {
+		List<CallExpNode> calls = new LinkedList<CallExpNode>();
+		node.collect(CallExpNode.class, calls);
+		List<WriteStmtNode> writes = new LinkedList<WriteStmtNode>();
+		if (a0)
+			node.collect(WriteStmtNode.class, writes);
+		return !calls.isEmpty() || !writes.isEmpty();
+	}
+	
+	/**
+	 * Return the number of bytes from the first formal down to the last
+	 * local (the frame, not counting expression temporaries).
+	 */
+	public int frameExtent() {
+		return myFormalsList.length()*4 + 8 + myBody.getSize() + cseSize();
+	}
+	
+	/**
+	 * Return the number of bytes just below the locals used by -cse for
+	 * the temporaries of common subexpressions.
+	 */
+	public int cseSize() {
+		if (myCseSize < 0) {
+			myCseSize = 0;
+			if (Codegen.cse) {
+				List<StmtListNode> lists = new LinkedList<StmtListNode>();
+				myBody.collect(StmtListNode.class, lists);
+				myCseSize = Cse.analyze(lists,
+				        -(myFormalsList.length()*4 + 8 + myBody.getSize()));
+			}
+		}
+		return myCseSize;
+	}
+	
+	/**
+	 * Return the number of bytes below the locals needed to hold the frames
+	 * of the functions inlined into this one.  Inlined calls never overlap
+	 * in time, so they share the area; nested inlining stacks up.
+	 */
+	public int inlineArea() {
+		if (myInlineArea < 0) {
+			myInlineArea = 0;
+			List<CallExpNode> calls = new LinkedList<CallExpNode>();
+			myBody.collect(CallExpNode.class, calls);
+			for (CallExpNode call : calls) {
+				FnDeclNode callee = call.fnSym().getDecl();
+				if (callee != null && callee.canInline(call)) {
+					myInlineArea = Math.max(myInlineArea,
+					        callee.frameExtent() + callee.inlineArea());
+				}
+			}
+		}
+		return myInlineArea;
+	}
+	
+	/**
+	 * genInline
+	 * Expand the body of this function at a call site whose actuals have
+	 * been pushed.  The formals and locals are given a free area of the
+	 * caller's frame and a return jumps to the end of the expansion with
+	 * the result in V0, just as after a jal.
+	 */
+	public void genInline() {
+		int savedDelta = Codegen.frameDelta;
+		int savedBase = Codegen.inlineBase;
+		FnDeclNode savedCurrent = current;
+		String savedFunction = Profile.function;
+		current = null;
+		Codegen.frameDelta = Codegen.inlineBase;
+		Codegen.inlineBase -= frameExtent();
+		Profile.function = myId.name();
 		
-		Codegen.generateWithComment("subu", "Function entry finished",Codegen.SP, Codegen.SP, new Integer(myBody.getSize()).toString() );
+		// the actuals are on the stack with the last one on top
+		for (int k = myFormalsList.length() - 1; k >= 0; k--) {
+			Codegen.genPop(Codegen.T0);
+			Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP,
+			        Codegen.frameDelta + myFormalsList.get(k).sym().getOffset(),
+			        "inline " + myId.name());
+		}
+		Profile.genLabel("fn", myId.lineNum(), myId.charNum());
+		
+		String exitLabel = Codegen.nextLabel();
+		myBody.codeGen(exitLabel);
+		Codegen.genLabel(exitLabel, "end of inlined " + myId.name());
+		
+		Codegen.frameDelta = savedDelta;
+		Codegen.inlineBase = savedBase;
+		current = savedCurrent;
+		Profile.function = savedFunction;
+	}
+	
+	public void codeGen() {
+		if (Codegen.ssa) {
+			Cfg cfg = cfg();
+			Ssa.build(cfg);
+			if (Codegen.sccp)
+				Sccp.run(cfg);
+			Ssa.destruct(cfg);
+			if (Codegen.regalloc)
+				Regalloc.run(cfg);
+			cfg.codeGen();
+			return;
+		}
+		
+		// formals passed in registers have their slots in this frame
+		int formalsSize = myFormalsList.numOnStack()*4;
+		int frameSize = myBody.getSize() + cseSize() + myFormalsList.length()*4 - formalsSize;
+		frameSize += inlineArea();     // 0 unless calls are inlined
+		Codegen.frameDelta = 0;
+		Codegen.inlineBase = -frameExtent();
+		current = this;
+		
+		// a leaf keeps RA where it is, and needs no frame at all if every
+		// formal is in a register and there are no locals
+		boolean leaf = isLeaf();
+		List<Integer> regFormals = regFormals();
+		for (int k : regFormals)
+			myFormalsList.get(k).sym().setRegister(Codegen.ARGS[k]);
+		boolean noFrame = leaf && myBody.getSize() == 0 && cseSize() == 0 &&
+		                  regFormals.size() == myFormalsList.length();
+		
+		// the body comes first, so that the entry code knows how much room
+		// its temporaries need in the frame (with -temps; see Codegen)
+		Codegen.startBody(noFrame ? null : Codegen.inlineBase - inlineArea());
+		if (Codegen.tailCalls) {
+			myTailLabel = Codegen.nextLabel();
+			Codegen.genLabel(myTailLabel);
+		}
+		Profile.function = myId.name();
+		Profile.genLabel("fn", myId.lineNum(), myId.charNum());
+		
+		// spill the register formals that must live in memory
+		if (Codegen.regArgs) {
+			int n = myFormalsList.length() - myFormalsList.numOnStack();
+			for (int k = 0; k < n; k++) {
+				if (!regFormals.contains(k)) {
+					Codegen.generateIndexed("sw", Codegen.ARGS[k], Codegen.FP,
+					        myFormalsList.get(k).sym().getOffset(), "Spill formal");
+				}
+			}
+		}
 
 		String retLabel = Codegen.nextLabel();
 		myBody.codeGen(retLabel); 
 		Codegen.genLabel(retLabel);
 
-		Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, - myFormalsList.length()*4, "Load ra");
-		Codegen.generateWithComment("move", "Save control link", Codegen.T0, Codegen.FP);
-		Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -myFormalsList.length()*4-4, "Restore FP");
-		Codegen.generate("move", Codegen.SP, Codegen.T0);
+		if (noFrame) {
+			if (formalsSize > 0)
+				Codegen.generateWithComment("addu", "Pop actuals", Codegen.SP, Codegen.SP, new Integer(formalsSize).toString());
+		}
+		else if (leaf) {
+			Codegen.generate("move", Codegen.SP, Codegen.FP);
+			Codegen.generateIndexed("lw", Codegen.FP, Codegen.SP, -formalsSize-4, "Restore FP");
+		}
+		else {
+			Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, -formalsSize, "Load ra");
+			Codegen.generateWithComment("move", "Save control link", Codegen.T0, Codegen.FP);
+			Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -formalsSize-4, "Restore FP");
+			Codegen.generate("move", Codegen.SP, Codegen.T0);
+		}
+		for (int k : regFormals)
+			myFormalsList.get(k).sym().setRegister(null);
+		current = null;
 
 		if(myId.name().equals("main")) {
+			MipsRuntime.genFlush();
 			Codegen.generate("li", Codegen.V0, "10");
 			Codegen.generateWithComment("syscall", "Exit main function");
 		}
 		else
 			Codegen.generateWithComment("jr","Function exit finished", Codegen.RA);
+		Codegen.genOutOfLineCode();
+		frameSize += Codegen.endBody();
+		
+		Codegen.generate(".text");
+		
+		if(myId.name().equals("main")) {
+			Codegen.generate(".globl main");
+			Codegen.genLabel("main");
+			Codegen.genLabel("__start");
+			Codegen.genGlobalPointer();
+		}
+		
+		else 
+			Codegen.genLabel("_"+myId.name());
+		
+		if (noFrame) {
+			Codegen.generateWithComment("", "Leaf function, no frame");
+		}
+		else if (leaf) {
+			Codegen.generateIndexed("sw", Codegen.FP, Codegen.SP, -4, "Save FP");
+			Codegen.generate("addu", Codegen.FP, Codegen.SP, formalsSize);
+			Codegen.generateWithComment("subu", "Function entry finished",Codegen.SP, Codegen.SP, new Integer(frameSize + 8).toString() );
+		}
+		else {
+			Codegen.genPush(Codegen.RA);
+			Codegen.genPush(Codegen.FP);
+
+			Codegen.generate("addu", Codegen.FP, Codegen.SP, formalsSize+8); 
+			Codegen.generateWithComment("subu", "Function entry finished",Codegen.SP, Codegen.SP, new Integer(frameSize).toString() );
+		}
+		Codegen.genBody();
+	}
+
+	/**
+	 * Return the descriptor of the JVM method for function name; main
+	 * becomes the class's main(String[]).
+	 */
+	public static String jvmDescriptor(String name, FnSym sym) {
+		if (name.equals("main"))
+			return "([Ljava/lang/String;)V";
+		StringBuilder desc = new StringBuilder("(");
+		for (int k = 0; k < sym.getNumParams(); k++)
+			desc.append('I');
+		desc.append(sym.getReturnType().isVoidType() ? ")V" : ")I");
+		return desc.toString();
+	}
+	
+	@Override
+	public void jvmGen() {
+		FnSym sym = (FnSym)myId.sym();
+		JvmGen.beginMethod(myId.name(), jvmDescriptor(myId.name(), sym));
+		if (isMain())
+			JvmGen.newLocal(null);      // String[] args
+		for (int k = 0; k < myFormalsList.length(); k++)
+			JvmGen.newLocal(myFormalsList.get(k).sym());
+		
+		// the verifier wants every local set before it is read
+		List<VarDeclNode> decls = new LinkedList<VarDeclNode>();
+		myBody.collect(VarDeclNode.class, decls);
+		for (VarDeclNode decl : decls) {
+			if (!decl.isStruct()) {
+				JvmGen.genInt(0);
+				JvmGen.generate(JvmGen.ISTORE, JvmGen.newLocal(decl.sym()));
+			}
+		}
+		
+		// returns leave their value on the stack and jump to the exit
+		String retLabel = JvmGen.nextLabel();
+		myBody.jvmGen(retLabel);
+		boolean isVoid = sym.getReturnType().isVoidType();
+		if (!isVoid)
+			JvmGen.genInt(0);           // falling off the end
+		JvmGen.genLabel(retLabel);
+		
+		if (isMain()) {
+			if (!isVoid)
+				JvmGen.generate(JvmGen.POP);
+			JvmGen.genCall(JvmGen.RUNTIME, "flush", "()V");
+			JvmGen.generate(JvmGen.RETURN);
+		}
+		else
+			JvmGen.generate(isVoid ? JvmGen.RETURN : JvmGen.IRETURN);
+		JvmGen.endMethod();
+	}
+	
+	@Override
+	public void interpret() {
+		Interp.Function fn = Interp.function(myId.sym());
+		if (isMain())
+			Interp.main = myId.sym();
+		
+		// the frame holds the formals and every local, then the result
+		int size = 0;
+		fn.formals = new int[myFormalsList.length()];
+		for (int k = 0; k < fn.formals.length; k++) {
+			fn.formals[k] = Interp.slot(myFormalsList.get(k).sym());
+			size = Math.max(size, fn.formals[k] + 1);
+		}
+		List<VarDeclNode> decls = new LinkedList<VarDeclNode>();
+		myBody.collect(VarDeclNode.class, decls);
+		for (VarDeclNode decl : decls) {
+			if (!decl.isStruct())
+				size = Math.max(size, Interp.slot(decl.sym()) + 1);
+		}
+		fn.size = size;
 		
+		Interp.retSlot = size;
+		fn.body = myBody.closure();
+	}
+	
+	// the function as a control-flow graph, for -ssa
+	public Cfg cfg() {
+		Cfg cfg = new Cfg(myId.name(), isMain(), myFormalsList.length(),
+		                  myBody.getSize());
+		myBody.cfgGen(cfg);
+		cfg.finish();
+		return cfg;
 	}
 }
 
@@ -855,6 +1576,10 @@ class FormalDeclNode extends DeclNode {
     private TypeNode myType;
     private IdNode myId;
     
+    public SemSym sym() {
+        return myId.sym();
+    }
+    
     public void setOffset(int formalOffset){
 		myId.setOffset(formalOffset);
 	}
@@ -1047,6 +1772,22 @@ abstract class StmtNode extends ASTnode {
     abstract public void setOffset(int offset);
 	abstract public int  getOffset();
 	abstract public int  getSize();
+
+	// retLab is the label of the exit code of the enclosing function;
+	// only statements that can contain a return need it
+	public void codeGen(String retLab) {
+		codeGen();
+	}
+
+	// JVM code for the statement; retLab is the label of the exit code
+	// of the enclosing method
+	abstract public void jvmGen(String retLab);
+
+	// the statement compiled for Interp
+	abstract public Interp.Stmt closure();
+	
+	// add the statement to the control-flow graph being built
+	abstract public void cfgGen(Cfg cfg);
 }
 
 class AssignStmtNode extends StmtNode {
@@ -1075,6 +1816,10 @@ class AssignStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myAssign);
+    }
+
     // 1 kid
     private AssignNode myAssign;
     private int offset;
@@ -1098,6 +1843,25 @@ class AssignStmtNode extends StmtNode {
 		return 0;
 	}
 	
+	
+	@Override
+	public void jvmGen(String retLab) {
+		myAssign.jvmGen(false);
+	}
+	
+	@Override
+	public Interp.Stmt closure() {
+		final Interp.Exp assign = myAssign.closure();
+		return f -> {
+			assign.eval(f);
+			return false;
+		};
+	}
+	
+	@Override
+	public void cfgGen(Cfg cfg) {
+		myAssign.cfgGen(cfg);
+	}
 }
 
 class PostIncStmtNode extends StmtNode {
@@ -1131,6 +1895,10 @@ class PostIncStmtNode extends StmtNode {
         p.println("++;");
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myExp);
+    }
+
     // 1 kid
     private ExpNode myExp;
     private int offset;
@@ -1152,12 +1920,30 @@ class PostIncStmtNode extends StmtNode {
 
 	@Override
 	public void codeGen() {
-		myExp.codeGen();
-		((IdNode)myExp).genAddr();
-		Codegen.genPop(Codegen.T1);
-		Codegen.genPop(Codegen.T0);
+		String reg = ((IdNode)myExp).register();
+		if (reg != null) {
+			Codegen.generate("add", reg, reg, "1");
+			return;
+		}
+		((IdNode)myExp).genLoad(Codegen.T0);
 		Codegen.generate("add", Codegen.T0, Codegen.T0, "1");
-		Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);	
+		((IdNode)myExp).genStore(Codegen.T0);	
+	}
+	
+	@Override
+	public void jvmGen(String retLab) {
+		((IdNode)myExp).jvmGenAdd(1);
+	}
+	
+	@Override
+	public Interp.Stmt closure() {
+		return ((IdNode)myExp).closureAdd(1);
+	}
+	
+	@Override
+	public void cfgGen(Cfg cfg) {
+		Cfg.Var v = ((IdNode)myExp).cfgVar(cfg);
+		cfg.add("add", v, v, new Cfg.Const(1));
 	}
 }
 
@@ -1192,6 +1978,10 @@ class PostDecStmtNode extends StmtNode {
         p.println("--;");
     }
     
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myExp);
+    }
+
     // 1 kid
     private ExpNode myExp;
     private int offset;
@@ -1214,12 +2004,30 @@ class PostDecStmtNode extends StmtNode {
 
 	@Override
 	public void codeGen() {
-		myExp.codeGen();
-		((IdNode)myExp).genAddr();
-		Codegen.genPop(Codegen.T1);
-		Codegen.genPop(Codegen.T0);
+		String reg = ((IdNode)myExp).register();
+		if (reg != null) {
+			Codegen.generate("sub", reg, reg, "1");
+			return;
+		}
+		((IdNode)myExp).genLoad(Codegen.T0);
 		Codegen.generate("sub", Codegen.T0, Codegen.T0, "1");
-		Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
+		((IdNode)myExp).genStore(Codegen.T0);
+	}
+	
+	@Override
+	public void jvmGen(String retLab) {
+		((IdNode)myExp).jvmGenAdd(-1);
+	}
+	
+	@Override
+	public Interp.Stmt closure() {
+		return ((IdNode)myExp).closureAdd(-1);
+	}
+	
+	@Override
+	public void cfgGen(Cfg cfg) {
+		Cfg.Var v = ((IdNode)myExp).cfgVar(cfg);
+		cfg.add("sub", v, v, new Cfg.Const(1));
 	}
 }
 
@@ -1265,6 +2073,17 @@ class ReadStmtNode extends StmtNode {
         p.println(";");
     }
 
+    /**
+     * Return the location that is read into.
+     */
+    public ExpNode exp() {
+        return myExp;
+    }
+
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myExp);
+    }
+
     // 1 kid (actually can only be an IdNode or an ArrayExpNode)
     private ExpNode myExp;
     private int offset;
@@ -1288,10 +2107,18 @@ class ReadStmtNode extends StmtNode {
 	@Override
 	public void codeGen() {
 
+		if (Codegen.bufferIn) {
+			MipsRuntime.genRead();
+			if(((IdNode)myExp).sym().getType().isBoolType())
+				Codegen.generate("sne",Codegen.V0, Codegen.V0, "$zero");
+			((IdNode)myExp).genStore(Codegen.V0);
+			return;
+		}
+		MipsRuntime.genFlush();
 		((IdNode)myExp).genAddr();
 		Codegen.generateWithComment("li","Read start", Codegen.V0, "5");
 		Codegen.generate("syscall");
-		Codegen.generateIndexed("lw", Codegen.T0, Codegen.SP, 4);
+		Codegen.genPeek(Codegen.T0, 1);
 		
 		if(((IdNode)myExp).sym().getType().isBoolType()) {
 			Codegen.generate("sne",Codegen.V0, Codegen.V0, "$zero");
@@ -1300,6 +2127,34 @@ class ReadStmtNode extends StmtNode {
 		Codegen.generateIndexed("sw", Codegen.V0, Codegen.T0, 0);
 		Codegen.genPop(Codegen.V0);
 	}
+	
+	@Override
+	public void jvmGen(String retLab) {
+		IdNode id = (IdNode)myExp;
+		if (id.sym().getType().isBoolType())
+			JvmGen.genCall(JvmGen.RUNTIME, "readBool", "()I");
+		else
+			JvmGen.genCall(JvmGen.RUNTIME, "readInt", "()I");
+		id.jvmStore();
+	}
+	
+	@Override
+	public Interp.Stmt closure() {
+		IdNode id = (IdNode)myExp;
+		final Interp.Exp read = id.closureStore(
+			id.sym().getType().isBoolType() ? f -> JvmRuntime.readBool()
+			                                : f -> JvmRuntime.readInt());
+		return f -> {
+			read.eval(f);
+			return false;
+		};
+	}
+	
+	@Override
+	public void cfgGen(Cfg cfg) {
+		IdNode id = (IdNode)myExp;
+		cfg.add(id.sym().getType().isBoolType() ? "readbool" : "read", id.cfgVar(cfg));
+	}
 }
 
 class WriteStmtNode extends StmtNode {
@@ -1350,6 +2205,77 @@ class WriteStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myExp);
+    }
+
+	/**
+	 * Return the text this write prints if it is known at compile time
+	 * (a string literal, or an int or bool expression that folds to a
+	 * constant), or null.
+	 */
+	public String constantText() {
+		if (myExp instanceof StringLitNode)
+			return ((StringLitNode)myExp).value();
+		Integer value = fold(myExp);
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * Return a write of the string text, standing where this one does.
+	 */
+	public WriteStmtNode writing(String text) {
+		WriteStmtNode write = new WriteStmtNode(new StringLitNode(
+		        myExp.lineNum(), myExp.charNum(), StringPool.quote(text)));
+		write.writeType = new StringType();
+		write.setOffset(offset);
+		return write;
+	}
+
+	// the value of an int or bool expression made of literals, or null if
+	// it has other operands or would trap when run (as Sccp folds)
+	private static Integer fold(ExpNode exp) {
+		if (exp instanceof IntLitNode)
+			return ((IntLitNode)exp).value();
+		if (exp instanceof TrueNode)
+			return 1;
+		if (exp instanceof FalseNode)
+			return 0;
+		try {
+			if (exp instanceof UnaryExpNode) {
+				Integer a = fold(((UnaryExpNode)exp).exp());
+				if (a == null)
+					return null;
+				return exp instanceof NotNode ? a ^ 1 : Math.negateExact(a);
+			}
+			if (!(exp instanceof BinaryExpNode))
+				return null;
+			Integer a = fold(((BinaryExpNode)exp).myExp1);
+			Integer b = fold(((BinaryExpNode)exp).myExp2);
+			if (a == null || b == null)
+				return null;
+			if (exp instanceof PlusNode)      return Math.addExact(a, b);
+			if (exp instanceof MinusNode)     return Math.subtractExact(a, b);
+			if (exp instanceof TimesNode)
+				return Codegen.wrap ? a * b : Math.multiplyExact(a, b);
+			if (exp instanceof DivideNode) {
+				if (b == 0 || (a == Integer.MIN_VALUE && b == -1))
+					return null;
+				return a / b;
+			}
+			if (exp instanceof AndNode)       return a & b;
+			if (exp instanceof OrNode)        return a | b;
+			if (exp instanceof EqualsNode)    return a.equals(b) ? 1 : 0;
+			if (exp instanceof NotEqualsNode) return a.equals(b) ? 0 : 1;
+			if (exp instanceof LessNode)      return a < b ? 1 : 0;
+			if (exp instanceof GreaterNode)   return a > b ? 1 : 0;
+			if (exp instanceof LessEqNode)    return a <= b ? 1 : 0;
+			if (exp instanceof GreaterEqNode) return a >= b ? 1 : 0;
+		} catch (ArithmeticException ex) {
+		}
+		return null;
+	}
+
     // 1 kid
     private ExpNode myExp;
     private int offset;
@@ -1375,6 +2301,10 @@ class WriteStmtNode extends StmtNode {
 		myExp.codeGen();
 		Codegen.genPop(Codegen.A0);
 
+		if (Codegen.bufferOut) {
+			MipsRuntime.genWrite(writeType.isStringType());
+			return;
+		}
 		if(writeType.isIntType() || writeType.isBoolType())
 			Codegen.generate("li", Codegen.V0, 1);
 		else if(writeType.isStringType())
@@ -1382,6 +2312,36 @@ class WriteStmtNode extends StmtNode {
 
 		Codegen.generateWithComment("syscall", "Write end");		
 	}
+	
+	@Override
+	public void jvmGen(String retLab) {
+		myExp.jvmGen();
+		if (writeType.isStringType())
+			JvmGen.genCall(JvmGen.RUNTIME, "print", "(Ljava/lang/String;)V");
+		else
+			JvmGen.genCall(JvmGen.RUNTIME, "print", "(I)V");
+	}
+	
+	@Override
+	public Interp.Stmt closure() {
+		if (writeType.isStringType()) {
+			final String value = ((StringLitNode)myExp).value();
+			return f -> {
+				JvmRuntime.print(value);
+				return false;
+			};
+		}
+		final Interp.Exp exp = myExp.closure();
+		return f -> {
+			JvmRuntime.print(exp.eval(f));
+			return false;
+		};
+	}
+	
+	@Override
+	public void cfgGen(Cfg cfg) {
+		cfg.add(writeType.isStringType() ? "writestr" : "write", null, myExp.cfgGen(cfg));
+	}
 }
 
 class IfStmtNode extends StmtNode {
@@ -1402,7 +2362,9 @@ class IfStmtNode extends StmtNode {
     public void nameAnalysis(SymTable symTab) {
         myExp.nameAnalysis(symTab);
         symTab.addScope();
+        myDeclList.setOffset(this.offset);
         myDeclList.nameAnalysis(symTab);
+        myStmtList.setOffset(myDeclList.getOffset());
         myStmtList.nameAnalysis(symTab);
         try {
             symTab.removeScope();
@@ -1438,6 +2400,12 @@ class IfStmtNode extends StmtNode {
         p.println("}");
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myExp);
+        kids.add(myDeclList);
+        kids.add(myStmtList);
+    }
+
     // e kids
     private ExpNode myExp;
     private DeclListNode myDeclList;
@@ -1452,24 +2420,69 @@ class IfStmtNode extends StmtNode {
 
 	@Override
 	public int getOffset() {
-		return this.offset + myDeclList.getSize() + myStmtList.getSize();
+		return myStmtList.getOffset();
 	}
 
 	@Override
 	public int getSize() {
-		return myDeclList.getSize() + myStmtList.getSize();
+		return this.offset - getOffset();
 	}
 
 	@Override
 	public void codeGen() {
+		codeGen(null);
+	}
+
+	@Override
+	public void codeGen(String retLab) {
 		String trueLabel = Codegen.nextLabel();
 		String doneLabel = Codegen.nextLabel();
+		int line = myExp.lineNum();
+		int col = myExp.charNum();
 
+		Profile.genLabel("if", line, col);
 		myExp.genJumpCode(trueLabel, doneLabel);
-		Codegen.genLabel(trueLabel);
-		myStmtList.codeGen();
+		
+		// a then part the profile says is rarely run is moved out of line
+		if (Profile.isCold(Profile.count("then", line, col),
+		                   Profile.count("if", line, col))) {
+			Codegen.genOutOfLine(trueLabel, doneLabel, () -> {
+				Profile.genLabel("then", line, col);
+				myStmtList.codeGen(retLab);
+			});
+		}
+		else {
+			Codegen.genLabel(trueLabel);
+			Profile.genLabel("then", line, col);
+			myStmtList.codeGen(retLab);
+		}
 		Codegen.genLabel(doneLabel);		
 	}
+	
+	@Override
+	public void jvmGen(String retLab) {
+		String endLab = JvmGen.nextLabel();
+		myExp.jvmGen();
+		JvmGen.genJump(JvmGen.IFEQ, endLab);
+		myStmtList.jvmGen(retLab);
+		JvmGen.genLabel(endLab);
+	}
+	
+	@Override
+	public Interp.Stmt closure() {
+		final Interp.Exp exp = myExp.closure();
+		final Interp.Stmt body = myStmtList.closure();
+		return f -> exp.eval(f) != 0 && body.exec(f);
+	}
+	
+	@Override
+	public void cfgGen(Cfg cfg) {
+		Cfg.Block then = cfg.newBlock(), done = cfg.newBlock();
+		myExp.cfgJump(cfg, then, done);
+		cfg.startBlock(then);
+		myStmtList.cfgGen(cfg);
+		cfg.startBlock(done);
+	}
 }
 
 class IfElseStmtNode extends StmtNode {
@@ -1497,7 +2510,9 @@ class IfElseStmtNode extends StmtNode {
     public void nameAnalysis(SymTable symTab) {
         myExp.nameAnalysis(symTab);
         symTab.addScope();
+        myThenDeclList.setOffset(this.offset);
         myThenDeclList.nameAnalysis(symTab);
+        myThenStmtList.setOffset(myThenDeclList.getOffset());
         myThenStmtList.nameAnalysis(symTab);
         try {
             symTab.removeScope();
@@ -1507,7 +2522,10 @@ class IfElseStmtNode extends StmtNode {
             System.exit(-1);        
         }
         symTab.addScope();
+        // the two branches never run together, so they share frame slots
+        myElseDeclList.setOffset(this.offset);
         myElseDeclList.nameAnalysis(symTab);
+        myElseStmtList.setOffset(myElseDeclList.getOffset());
         myElseStmtList.nameAnalysis(symTab);
         try {
             symTab.removeScope();
@@ -1550,6 +2568,14 @@ class IfElseStmtNode extends StmtNode {
         p.println("}");        
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myExp);
+        kids.add(myThenDeclList);
+        kids.add(myThenStmtList);
+        kids.add(myElseDeclList);
+        kids.add(myElseStmtList);
+    }
+
     // 5 kids
     private ExpNode myExp;
     private DeclListNode myThenDeclList;
@@ -1565,29 +2591,101 @@ class IfElseStmtNode extends StmtNode {
 
 	@Override
 	public int getOffset() {
-		return myElseStmtList.getOffset();
+		return Math.min(myThenStmtList.getOffset(), myElseStmtList.getOffset());
 	}
 
 	@Override
 	public int getSize() {
-		return myThenDeclList.getSize() + myThenStmtList.getSize()+myElseDeclList.getSize() + myElseStmtList.getSize();
+		return this.offset - getOffset();
 	}
 
 	@Override
 	public void codeGen() {
+		codeGen(null);
+	}
+
+	@Override
+	public void codeGen(String retLab) {
 		String trueLabel = Codegen.nextLabel();
 		String falseLabel = Codegen.nextLabel();
 		String doneLabel = Codegen.nextLabel();
+		int line = myExp.lineNum();
+		int col = myExp.charNum();
 		
+		Profile.genLabel("if", line, col);
 		myExp.genJumpCode(trueLabel, falseLabel);
-		Codegen.genLabel(trueLabel);
-		myThenStmtList.codeGen();
-		Codegen.generate("b", doneLabel);
-
-		Codegen.genLabel(falseLabel);
-		myElseStmtList.codeGen();
+		
+		// with a profile, the part run more often comes first, and a part
+		// that is rarely run is moved out of line
+		long thenCount = Profile.count("then", line, col);
+		long elseCount = Profile.count("else", line, col);
+		Runnable thenPart = () -> {
+			Profile.genLabel("then", line, col);
+			myThenStmtList.codeGen(retLab);
+		};
+		Runnable elsePart = () -> {
+			Profile.genLabel("else", line, col);
+			myElseStmtList.codeGen(retLab);
+		};
+		if (Profile.isCold(elseCount, thenCount + elseCount)) {
+			Codegen.genLabel(trueLabel);
+			thenPart.run();
+			Codegen.genOutOfLine(falseLabel, doneLabel, elsePart);
+		}
+		else if (Profile.isCold(thenCount, thenCount + elseCount)) {
+			Codegen.genOutOfLine(trueLabel, doneLabel, thenPart);
+			Codegen.genLabel(falseLabel);
+			elsePart.run();
+		}
+		else if (elseCount > thenCount) {
+			Codegen.genLabel(falseLabel);
+			elsePart.run();
+			Codegen.generate("b", doneLabel);
+			Codegen.genLabel(trueLabel);
+			thenPart.run();
+		}
+		else {
+			Codegen.genLabel(trueLabel);
+			thenPart.run();
+			Codegen.generate("b", doneLabel);
+			Codegen.genLabel(falseLabel);
+			elsePart.run();
+		}
 		Codegen.genLabel(doneLabel);
 	}
+	
+	@Override
+	public void jvmGen(String retLab) {
+		String elseLab = JvmGen.nextLabel();
+		String endLab = JvmGen.nextLabel();
+		myExp.jvmGen();
+		JvmGen.genJump(JvmGen.IFEQ, elseLab);
+		myThenStmtList.jvmGen(retLab);
+		JvmGen.genJump(JvmGen.GOTO, endLab);
+		JvmGen.genLabel(elseLab);
+		myElseStmtList.jvmGen(retLab);
+		JvmGen.genLabel(endLab);
+	}
+	
+	@Override
+	public Interp.Stmt closure() {
+		final Interp.Exp exp = myExp.closure();
+		final Interp.Stmt thenBody = myThenStmtList.closure();
+		final Interp.Stmt elseBody = myElseStmtList.closure();
+		return f -> exp.eval(f) != 0 ? thenBody.exec(f) : elseBody.exec(f);
+	}
+	
+	@Override
+	public void cfgGen(Cfg cfg) {
+		Cfg.Block then = cfg.newBlock(), other = cfg.newBlock(), done = cfg.newBlock();
+		myExp.cfgJump(cfg, then, other);
+		cfg.startBlock(then);
+		myThenStmtList.cfgGen(cfg);
+		cfg.jump(done);
+		cfg.startBlock(other);
+		myElseStmtList.cfgGen(cfg);
+		cfg.startBlock(done);
+	}
 }
 
 class WhileStmtNode extends StmtNode {
@@ -1608,7 +2706,9 @@ class WhileStmtNode extends StmtNode {
     public void nameAnalysis(SymTable symTab) {
         myExp.nameAnalysis(symTab);
         symTab.addScope();
+        myDeclList.setOffset(this.offset);
         myDeclList.nameAnalysis(symTab);
+        myStmtList.setOffset(myDeclList.getOffset());
         myStmtList.nameAnalysis(symTab);
         try {
             symTab.removeScope();
@@ -1644,6 +2744,12 @@ class WhileStmtNode extends StmtNode {
         p.println("}");
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myExp);
+        kids.add(myDeclList);
+        kids.add(myStmtList);
+    }
+
     // 3 kids
     private ExpNode myExp;
     private DeclListNode myDeclList;
@@ -1663,21 +2769,78 @@ class WhileStmtNode extends StmtNode {
 
 	@Override
 	public int getSize() {
-		return 0;
+		return this.offset - getOffset();
 	}
 
 	@Override
 	public void codeGen() {
+		codeGen(null);
+	}
+
+	@Override
+	public void codeGen(String retLab) {
 		String whileStartLabel = Codegen.nextLabel();
 		String doneLabel = Codegen.nextLabel();
+		
+		// a loop the profile says iterates is tested at the bottom, so
+		// that an iteration takes only the branch back to the top
+		if (Profile.count("loop", myExp.lineNum(), myExp.charNum()) > 0) {
+			String bodyLabel = Codegen.nextLabel();
+			Codegen.generate("b", whileStartLabel);
+			Codegen.genLabel(bodyLabel);
+			Profile.genLabel("loop", myExp.lineNum(), myExp.charNum());
+			myStmtList.codeGen(retLab);
+			Codegen.genLabel(whileStartLabel);
+			myExp.genJumpCode(bodyLabel, doneLabel);
+			Codegen.genLabel(doneLabel);
+			return;
+		}
+		
 		Codegen.genLabel(whileStartLabel);	
 		myExp.codeGen();
 		Codegen.genPop(Codegen.T0);
 		Codegen.generate("beq",Codegen.T0, "$zero",  doneLabel);
-		myStmtList.codeGen();
+		Profile.genLabel("loop", myExp.lineNum(), myExp.charNum());
+		myStmtList.codeGen(retLab);
 		Codegen.generate("b", whileStartLabel);	
 		Codegen.genLabel(doneLabel);
 	}
+	
+	@Override
+	public void jvmGen(String retLab) {
+		String topLab = JvmGen.nextLabel();
+		String endLab = JvmGen.nextLabel();
+		JvmGen.genLabel(topLab);
+		myExp.jvmGen();
+		JvmGen.genJump(JvmGen.IFEQ, endLab);
+		myStmtList.jvmGen(retLab);
+		JvmGen.genJump(JvmGen.GOTO, topLab);
+		JvmGen.genLabel(endLab);
+	}
+	
+	@Override
+	public Interp.Stmt closure() {
+		final Interp.Exp exp = myExp.closure();
+		final Interp.Stmt body = myStmtList.closure();
+		return f -> {
+			while (exp.eval(f) != 0) {
+				if (body.exec(f))
+					return true;
+			}
+			return false;
+		};
+	}
+	
+	@Override
+	public void cfgGen(Cfg cfg) {
+		Cfg.Block test = cfg.newBlock(), body = cfg.newBlock(), done = cfg.newBlock();
+		cfg.startBlock(test);
+		myExp.cfgJump(cfg, body, done);
+		cfg.startBlock(body);
+		myStmtList.cfgGen(cfg);
+		cfg.jump(test);
+		cfg.startBlock(done);
+	}
 }
 
 class CallStmtNode extends StmtNode {
@@ -1706,6 +2869,10 @@ class CallStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myCall);
+    }
+
     // 1 kid
     private CallExpNode myCall;
     private int offset;
@@ -1731,6 +2898,27 @@ class CallStmtNode extends StmtNode {
 		myCall.codeGen();
 		Codegen.genPop(Codegen.V0);
 	}
+	
+	@Override
+	public void jvmGen(String retLab) {
+		myCall.jvmGen();
+		if (!myCall.fnSym().getReturnType().isVoidType())
+			JvmGen.generate(JvmGen.POP);
+	}
+	
+	@Override
+	public Interp.Stmt closure() {
+		final Interp.Exp call = myCall.closure();
+		return f -> {
+			call.eval(f);
+			return false;
+		};
+	}
+	
+	@Override
+	public void cfgGen(Cfg cfg) {
+		myCall.cfgGen(cfg);
+	}
 }
 
 class ReturnStmtNode extends StmtNode {
@@ -1739,6 +2927,8 @@ class ReturnStmtNode extends StmtNode {
     }
     
     public void codeGen(String retLab) {
+    	if (myExp instanceof CallExpNode && ((CallExpNode)myExp).genTailCall())
+    		return;
     	if(myExp != null) {
 			myExp.codeGen();
 			Codegen.genPop(Codegen.V0);
@@ -1793,6 +2983,11 @@ class ReturnStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public void addKids(List<ASTnode> kids) {
+        if (myExp != null)
+            kids.add(myExp);
+    }
+
     // 1 kid
     private ExpNode myExp; // possibly null
     private int offset;
@@ -1816,6 +3011,30 @@ class ReturnStmtNode extends StmtNode {
 	public void codeGen() {
 		
 	}
+	
+	@Override
+	public void jvmGen(String retLab) {
+		if (myExp != null)
+			myExp.jvmGen();
+		JvmGen.genJump(JvmGen.GOTO, retLab);
+	}
+	
+	@Override
+	public Interp.Stmt closure() {
+		if (myExp == null)
+			return f -> true;
+		final Interp.Exp exp = myExp.closure();
+		final int retSlot = Interp.retSlot;
+		return f -> {
+			f[retSlot] = exp.eval(f);
+			return true;
+		};
+	}
+	
+	@Override
+	public void cfgGen(Cfg cfg) {
+		cfg.ret(myExp == null ? null : myExp.cfgGen(cfg));
+	}
 }
 
 // **********************************************************************
@@ -1832,6 +3051,21 @@ abstract class ExpNode extends ASTnode {
     abstract public int lineNum();
     abstract public int charNum();
     abstract public void genJumpCode(String trueLabel,String falseLabel);
+
+    // JVM code leaving the value of the expression on the operand stack
+    abstract public void jvmGen();
+
+    // the expression compiled for Interp
+    abstract public Interp.Exp closure();
+	
+	// add the code of the expression to the control-flow graph being
+	// built; return the operand holding its value
+	abstract public Cfg.Operand cfgGen(Cfg cfg);
+	
+	// add the code of a condition, going to ifTrue or ifFalse
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		cfg.branch("bne", cfgGen(cfg), new Cfg.Const(0), ifTrue, ifFalse);
+	}
 }
 
 class IntLitNode extends ExpNode {
@@ -1869,6 +3103,11 @@ class IntLitNode extends ExpNode {
     private int myLineNum;
     private int myCharNum;
     private int myIntVal;
+
+	public int value() {
+		return myIntVal;
+	}
+	
 	@Override
 	public void genJumpCode(String trueLabel, String falseLabel) {
 		
@@ -1880,6 +3119,22 @@ class IntLitNode extends ExpNode {
 		Codegen.genPush(Codegen.T0);
 		
 	}
+	
+	@Override
+	public void jvmGen() {
+		JvmGen.genInt(myIntVal);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final int value = myIntVal;
+		return f -> value;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return new Cfg.Const(myIntVal);
+	}
 }
 
 class StringLitNode extends ExpNode {
@@ -1917,7 +3172,6 @@ class StringLitNode extends ExpNode {
     private int myLineNum;
     private int myCharNum;
     private String myStrVal;
-    private static Map<String, String> strLitMap = new HashMap<String, String>();
     
 	@Override
 	public void genJumpCode(String trueLabel, String falseLabel) {
@@ -1926,23 +3180,47 @@ class StringLitNode extends ExpNode {
 
 	@Override
 	public void codeGen() {
-		Codegen.generate(".data");
-		String strLabel ;
+		Codegen.generate("la", Codegen.T0, label());
+		Codegen.genPush(Codegen.T0);
 		
-		if(strLitMap.containsKey(myStrVal) == false) {
-			strLabel = Codegen.nextLabel();
-			Codegen.generateLabeled(strLabel, ".asciiz ", "string lit", myStrVal);
-			strLitMap.put(myStrVal, strLabel);
+	}
+
+	// return the label of the string's copy in the string pool
+	public String label() {
+		return Codegen.strings.label(value());
+	}
+	
+	// the string the literal stands for: no quotes, escapes replaced
+	public String value() {
+		StringBuilder value = new StringBuilder();
+		for (int k = 1; k < myStrVal.length() - 1; k++) {
+			char c = myStrVal.charAt(k);
+			if (c == '\\') {
+				c = myStrVal.charAt(++k);
+				if (c == 'n')
+					c = '\n';
+				else if (c == 't')
+					c = '\t';
+			}
+			value.append(c);
 		}
-		
-		else
-			strLabel = strLitMap.get(myStrVal);
-		
-		Codegen.generate(".text");
-		Codegen.generate("la", Codegen.T0, strLabel);
-		Codegen.generateIndexed("sw", Codegen.T0, Codegen.SP, 0);
-		Codegen.generate("subu", Codegen.SP, Codegen.SP, 4);
-		
+		return value.toString();
+	}
+	
+	@Override
+	public void jvmGen() {
+		JvmGen.genString(value());
+	}
+	
+	// strings are only written and compared, which use value() instead
+	@Override
+	public Interp.Exp closure() {
+		return f -> 0;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return new Cfg.Str(this);
 	}
 }
 
@@ -1989,6 +3267,26 @@ class TrueNode extends ExpNode {
 		Codegen.generate("li", Codegen.T0, Codegen.TRUE);
 		Codegen.genPush(Codegen.T0);			
 	}
+	
+	@Override
+	public void jvmGen() {
+		JvmGen.genInt(1);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		return f -> 1;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return new Cfg.Const(1);
+	}
+	
+	@Override
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		cfg.jump(ifTrue);
+	}
 }
 
 class FalseNode extends ExpNode {
@@ -2034,6 +3332,26 @@ class FalseNode extends ExpNode {
 		Codegen.generate("li", Codegen.T0, Codegen.FALSE);
 		Codegen.genPush(Codegen.T0);
 	}
+	
+	@Override
+	public void jvmGen() {
+		JvmGen.genInt(0);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		return f -> 0;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return new Cfg.Const(0);
+	}
+	
+	@Override
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		cfg.jump(ifFalse);
+	}
 }
 
 class IdNode extends ExpNode {
@@ -2135,21 +3453,62 @@ class IdNode extends ExpNode {
 		return mySym.getOffset();
 	}
 	
+	// offset from FP of a local or formal; it is moved when the function
+	// it belongs to is being inlined
+	private int frameOffset() {
+		return mySym.getOffset() + Codegen.frameDelta;
+	}
+	
+	/**
+	 * Return the register holding this local or formal, or null if it
+	 * lives in memory.
+	 */
+	public String register() {
+		return mySym.isGlobal() ? null : mySym.getRegister();
+	}
+	
+	/**
+	 * genStore
+	 * Store the value in register reg into this variable, straight to
+	 * its register, its frame slot or its label.
+	 */
+	public void genStore(String reg) {
+		if (register() != null)
+			Codegen.generate("move", register(), reg);
+		else if(mySym.isGlobal() == true)
+			Codegen.generate("sw", reg, Codegen.global(mySym, myStrVal));
+		else
+			Codegen.generateIndexed("sw", reg, Codegen.FP, frameOffset());
+	}
     
-    public void codeGen() {
-    	if(mySym.isGlobal() == true)
-			Codegen.generate("lw", Codegen.T0, "_"+myStrVal);
+	/**
+	 * genLoad
+	 * Load the value of this variable into register reg.
+	 */
+	public void genLoad(String reg) {
+		if (register() != null)
+			Codegen.generate("move", reg, register());
+		else if(mySym.isGlobal() == true)
+			Codegen.generate("lw", reg, Codegen.global(mySym, myStrVal));
 		else
-			Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP, mySym.getOffset());
+			Codegen.generateIndexed("lw", reg, Codegen.FP, frameOffset());
+	}
+    
+    public void codeGen() {
+    	if (register() != null) {
+			Codegen.genPush(register());
+			return;
+		}
+    	genLoad(Codegen.T0);
 		Codegen.genPush(Codegen.T0);
 	}
     
     public void genAddr() {
     	
 		if(mySym.isGlobal() == true)
-			Codegen.generate("la", Codegen.T0, "_"+myStrVal);
+			Codegen.generate("la", Codegen.T0, Codegen.global(mySym, myStrVal));
 		else
-			Codegen.generateIndexed("la", Codegen.T0, Codegen.FP, mySym.getOffset());
+			Codegen.generateIndexed("la", Codegen.T0, Codegen.FP, frameOffset());
 		Codegen.genPush(Codegen.T0);
 		
 	}	
@@ -2158,10 +3517,15 @@ class IdNode extends ExpNode {
 		
     	assert(mySym.getType().isBoolType());
 		
+    	if (register() != null) {
+			Codegen.generate("beq", register(), "$zero", falseLabel);
+			Codegen.generate("b", trueLabel);
+			return;
+		}
     	if(mySym.isGlobal() == true)
-			Codegen.generate("lw", Codegen.T0, "_"+myStrVal);
+			Codegen.generate("lw", Codegen.T0, Codegen.global(mySym, myStrVal));
 		else
-			Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP, mySym.getOffset());
+			Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP, frameOffset());
 
 		Codegen.generate("beq", Codegen.T0, "$zero", falseLabel);
 		Codegen.generate("b", trueLabel);
@@ -2174,6 +3538,78 @@ class IdNode extends ExpNode {
 			Codegen.generate("jal", "_"+myStrVal);
 	}
     
+    public void genJump() {
+		Codegen.generate("j", "_"+myStrVal);
+	}
+    
+	
+	@Override
+	public void jvmGen() {
+		if (mySym.isGlobal())
+			JvmGen.genField(JvmGen.GETSTATIC, myStrVal);
+		else
+			JvmGen.generate(JvmGen.ILOAD, JvmGen.local(mySym));
+	}
+	
+	// store the value on top of the operand stack into this variable
+	public void jvmStore() {
+		if (mySym.isGlobal())
+			JvmGen.genField(JvmGen.PUTSTATIC, myStrVal);
+		else
+			JvmGen.generate(JvmGen.ISTORE, JvmGen.local(mySym));
+	}
+	
+	// add amount to this variable
+	public void jvmGenAdd(int amount) {
+		if (mySym.isGlobal()) {
+			JvmGen.genField(JvmGen.GETSTATIC, myStrVal);
+			JvmGen.genInt(amount);
+			JvmGen.generate(JvmGen.IADD);
+			JvmGen.genField(JvmGen.PUTSTATIC, myStrVal);
+		}
+		else
+			JvmGen.genIinc(JvmGen.local(mySym), amount);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final int slot = Interp.slot(mySym);
+		if (mySym.isGlobal())
+			return f -> Interp.globals[slot];
+		return f -> f[slot];
+	}
+	
+	// an expression storing the value of exp into this variable
+	public Interp.Exp closureStore(final Interp.Exp exp) {
+		final int slot = Interp.slot(mySym);
+		if (mySym.isGlobal())
+			return f -> Interp.globals[slot] = exp.eval(f);
+		return f -> f[slot] = exp.eval(f);
+	}
+	
+	// a statement adding amount to this variable
+	public Interp.Stmt closureAdd(final int amount) {
+		final int slot = Interp.slot(mySym);
+		if (mySym.isGlobal()) {
+			return f -> {
+				Interp.globals[slot] += amount;
+				return false;
+			};
+		}
+		return f -> {
+			f[slot] += amount;
+			return false;
+		};
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return cfgVar(cfg);
+	}
+	
+	public Cfg.Var cfgVar(Cfg cfg) {
+		return cfg.var(mySym, myStrVal);
+	}
 }
 
 class DotAccessExpNode extends ExpNode {
@@ -2314,6 +3750,11 @@ class DotAccessExpNode extends ExpNode {
         myId.unparse(p, 0);
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myLoc);
+        kids.add(myId);
+    }
+
     // 2 kids
     private ExpNode myLoc;    
     private IdNode myId;
@@ -2329,6 +3770,27 @@ class DotAccessExpNode extends ExpNode {
 	public void codeGen() {
 		
 	}
+	
+	@Override
+	public void jvmGen() {
+		ErrMsg.fatal(lineNum(), charNum(),
+		             "Struct fields are not supported by the JVM back end");
+		JvmGen.genInt(0);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		ErrMsg.fatal(lineNum(), charNum(),
+		             "Struct fields are not supported by the interpreter");
+		return f -> 0;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		ErrMsg.fatal(lineNum(), charNum(),
+		             "Struct fields are not supported with -ssa");
+		return new Cfg.Const(0);
+	}
 }
 
 class AssignNode extends ExpNode {
@@ -2406,6 +3868,11 @@ class AssignNode extends ExpNode {
         if (indent != -1)  p.print(")");
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myLhs);
+        kids.add(myExp);
+    }
+
     // 2 kids
     private ExpNode myLhs;
     private ExpNode myExp;
@@ -2414,10 +3881,9 @@ class AssignNode extends ExpNode {
 		
 		myExp.codeGen();
 		assert(myLhs instanceof IdNode);
-		((IdNode)myLhs).genAddr();
-		Codegen.genPop(Codegen.T0);
+		IdNode id = (IdNode)myLhs;
 		Codegen.genPop(Codegen.T1);
-		Codegen.generateIndexed("sw", Codegen.T1, Codegen.T0, 0);
+		id.genStore(Codegen.T1);
 		Codegen.generate("beq", Codegen.T1, "$zero", falseLabel);
 		Codegen.generate("b", trueLabel);
 		
@@ -2428,12 +3894,44 @@ class AssignNode extends ExpNode {
 		
 		myExp.codeGen();
 		assert(myLhs instanceof IdNode);
-		((IdNode)myLhs).genAddr();
-		Codegen.genPop(Codegen.T0);
-		Codegen.generateIndexed("lw", Codegen.T1, Codegen.SP, 4);
-		Codegen.generateIndexed("sw", Codegen.T1, Codegen.T0, 0);
+		IdNode id = (IdNode)myLhs;
+		Codegen.genPeek(Codegen.T1, 1);
+		id.genStore(Codegen.T1);
 		
 	}
+	
+	@Override
+	public void jvmGen() {
+		jvmGen(true);
+	}
+	
+	// with needValue false, the assigned value is not left on the stack
+	public void jvmGen(boolean needValue) {
+		myExp.jvmGen();
+		if (needValue)
+			JvmGen.generate(JvmGen.DUP);
+		if (myLhs instanceof IdNode)
+			((IdNode)myLhs).jvmStore();
+		else
+			myLhs.jvmGen();     // reports the struct field
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		if (myLhs instanceof IdNode)
+			return ((IdNode)myLhs).closureStore(myExp.closure());
+		return myLhs.closure();     // reports the struct field
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		if (!(myLhs instanceof IdNode))
+			return myLhs.cfgGen(cfg);   // reports the struct field
+		Cfg.Operand value = myExp.cfgGen(cfg);
+		Cfg.Var v = ((IdNode)myLhs).cfgVar(cfg);
+		cfg.add("move", v, value);
+		return v;
+	}
 }
 
 class CallExpNode extends ExpNode {
@@ -2510,14 +4008,205 @@ class CallExpNode extends ExpNode {
         p.print(")");
     }
 
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myId);
+        kids.add(myExpList);
+    }
+
     // 2 kids
     private IdNode myId;
     private ExpListNode myExpList;  // possibly null
+	/**
+	 * Return the symbol of the called function.
+	 */
+	public FnSym fnSym() {
+		return (FnSym)myId.sym();
+	}
+	
+	// evaluate the actuals and transfer control to the callee, or expand
+	// the callee in place; either way the result ends up in V0
+	private void genCall() {
+		Profile.genLabel("call", lineNum(), charNum());
+		FnDeclNode callee = fnSym().getDecl();
+		if (callee != null && callee.canInline(this)) {
+			myExpList.codeGen();
+			callee.genInline();
+			return;
+		}
+		
+		if (Codegen.regArgs) {
+			genRegArgs();
+		}
+		else {
+			// actual k is 4*(n-k) bytes above SP
+			int n = myExpList.size();
+			genStackArgs(0);
+			if (callee != null) {
+				for (int k : callee.regFormals())
+					Codegen.generateIndexed("lw", Codegen.ARGS[k], Codegen.SP, 4*(n-k));
+			}
+		}
+		myId.genJumpAndLink();
+	}
+	
+	/**
+	 * genTailCall
+	 * Generate this call as the value of a return statement: the actuals
+	 * replace the current function's own and control jumps to the callee,
+	 * which then returns straight to our caller.  This is done when the
+	 * callee is the function itself or takes as many actuals on the stack;
+	 * otherwise nothing is generated and false is returned.
+	 */
+	public boolean genTailCall() {
+		FnDeclNode caller = FnDeclNode.current();
+		FnDeclNode callee = fnSym().getDecl();
+		if (!Codegen.tailCalls || caller == null || callee == null ||
+		    caller.isMain() || callee.canInline(this))
+			return false;
+		boolean self = callee == caller;
+		if (!self && callee.numOnStack() != caller.numOnStack())
+			return false;
+		
+		// all actuals are evaluated before any formal is overwritten; the
+		// stack ones go to the caller's own slots, which the callee shares
+		myExpList.codeGen();
+		int n = myExpList.size();
+		int numRegs = Codegen.regArgs ? n - callee.numOnStack() : 0;
+		for (int k = n - 1; k >= 0; k--) {
+			if (k < numRegs) {
+				Codegen.genPop(Codegen.ARGS[k]);
+			}
+			else {
+				Codegen.genPop(Codegen.T0);
+				Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP,
+				        -4*(k - numRegs), "tail call");
+			}
+		}
+		
+		if (self) {
+			Codegen.generate("b", caller.tailLabel());
+			return true;
+		}
+		if (!Codegen.regArgs) {
+			for (int k : callee.regFormals())
+				Codegen.generateIndexed("lw", Codegen.ARGS[k], Codegen.FP, -4*k);
+		}
+		caller.genTailExit();
+		myId.genJump();
+		return true;
+	}
+	
+	// evaluate actuals from on, leaving actual k 4*(n-k) bytes above SP.
+	// With -temps, where pushing a value does not move SP, the area for
+	// them all is reserved at once and each is stored straight into its
+	// slot; otherwise each is pushed.
+	private void genStackArgs(int from) {
+		int n = myExpList.size();
+		if (!Codegen.temps || n == from) {
+			for (int k = from; k < n; k++)
+				myExpList.get(k).codeGen();
+			return;
+		}
+		Codegen.generate("subu", Codegen.SP, Codegen.SP, 4*(n-from));
+		for (int k = from; k < n; k++)
+			genStackArg(k, n);
+	}
+	
+	// evaluate actual k into its slot of the area of genStackArgs
+	private void genStackArg(int k, int n) {
+		ExpNode actual = myExpList.get(k);
+		String reg = Select.genReg(actual);
+		if (reg == null && isSimple(actual)) {
+			genLoad(actual, Codegen.T0);
+			reg = Codegen.T0;
+		}
+		if (reg == null) {
+			actual.codeGen();
+			Codegen.genPop(Codegen.T0);
+			reg = Codegen.T0;
+		}
+		Codegen.generateIndexed("sw", reg, Codegen.SP, 4*(n-k), "actual " + k);
+	}
+	
+	// with -regargs, evaluate the actuals so that the first four end up in
+	// A0-A3 and the others on the stack.  A constant, or a variable in
+	// memory that no later actual can change, is loaded straight into its
+	// register once everything else is evaluated; the rest are pushed,
+	// then the first four are popped and the others slid up over them
+	// (with -temps, the others go straight to the stack instead).
+	private void genRegArgs() {
+		int n = myExpList.size();
+		int numRegs = Math.min(n, Codegen.ARGS.length);
+		boolean batch = Codegen.temps && n > numRegs;
+		if (batch)
+			Codegen.generate("subu", Codegen.SP, Codegen.SP, 4*(n-numRegs));
+		boolean[] direct = new boolean[n];
+		List<Integer> pushed = new ArrayList<Integer>();
+		for (int k = 0; k < n; k++) {
+			direct[k] = k < numRegs && isDirect(k);
+			if (batch && k >= numRegs)
+				genStackArg(k, n);
+			else if (!direct[k]) {
+				myExpList.get(k).codeGen();
+				pushed.add(k);
+			}
+		}
+		
+		// the j'th pushed actual is m-j values from the top; the stack
+		// actuals were pushed last, so only the ones below them move
+		int m = pushed.size();
+		int numPopped = batch ? m : m - (n - numRegs);
+		for (int j = 0; j < numPopped; j++)
+			Codegen.genPeek(Codegen.ARGS[pushed.get(j)], m-j);
+		Codegen.genArgs(m - numPopped, numPopped);
+		
+		for (int k = 0; k < numRegs; k++) {
+			if (direct[k])
+				genLoad(myExpList.get(k), Codegen.ARGS[k]);
+		}
+	}
+	
+	// true if actual k can be loaded into its register after the other
+	// actuals have been evaluated without changing its value
+	private boolean isDirect(int k) {
+		ExpNode actual = myExpList.get(k);
+		if (actual instanceof IntLitNode || actual instanceof TrueNode ||
+		    actual instanceof FalseNode)
+			return true;
+		if (!(actual instanceof IdNode) || ((IdNode)actual).register() != null)
+			return false;
+		
+		for (int j = k+1; j < myExpList.size(); j++) {
+			List<CallExpNode> calls = new LinkedList<CallExpNode>();
+			myExpList.get(j).collect(CallExpNode.class, calls);
+			List<AssignNode> assigns = new LinkedList<AssignNode>();
+			myExpList.get(j).collect(AssignNode.class, assigns);
+			if (!calls.isEmpty() || !assigns.isEmpty())
+				return false;
+		}
+		return true;
+	}
+	
+	private static boolean isSimple(ExpNode actual) {
+		return actual instanceof IntLitNode || actual instanceof TrueNode ||
+		       actual instanceof FalseNode || actual instanceof IdNode;
+	}
+	
+	private static void genLoad(ExpNode actual, String reg) {
+		if (actual instanceof IntLitNode)
+			Codegen.generate("li", reg, ((IntLitNode)actual).value());
+		else if (actual instanceof TrueNode)
+			Codegen.generate("li", reg, 1);
+		else if (actual instanceof FalseNode)
+			Codegen.generate("li", reg, 0);
+		else
+			((IdNode)actual).genLoad(reg);
+	}
+	
 	@Override
 	public void genJumpCode(String trueLabel, String falseLabel) {
 		
-		myExpList.codeGen();
-		myId.genJumpAndLink();
+		genCall();
 		Codegen.generate("beq", Codegen.V0, "$zero", falseLabel);
 		Codegen.generate("b", trueLabel);
 		
@@ -2526,11 +4215,42 @@ class CallExpNode extends ExpNode {
 	@Override
 	public void codeGen() {
 		
-		myExpList.codeGen();
-		myId.genJumpAndLink();
+		genCall();
 		Codegen.genPush(Codegen.V0);
 		
 	}
+	
+	@Override
+	public void jvmGen() {
+		String name = myId.name();
+		if (name.equals("main"))
+			JvmGen.generate(JvmGen.ACONST_NULL);
+		myExpList.jvmGen();
+		JvmGen.genCall(JvmGen.className, name,
+		               FnDeclNode.jvmDescriptor(name, fnSym()));
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Function fn = Interp.function(myId.sym());
+		final Interp.Exp[] actuals = myExpList.closures();
+		return f -> {
+			int[] frame = new int[fn.size + 1];
+			for (int k = 0; k < actuals.length; k++)
+				frame[fn.formals[k]] = actuals[k].eval(f);
+			fn.body.exec(frame);
+			return frame[fn.size];
+		};
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		Cfg.Operand[] actuals = myExpList.cfgGen(cfg);
+		boolean isVoid = ((FnSym)myId.sym()).getReturnType().isVoidType();
+		Cfg.Var value = isVoid ? null : cfg.newTemp();
+		cfg.call(value, myId.name(), actuals);
+		return value;
+	}
 }
 
 abstract class UnaryExpNode extends ExpNode {
@@ -2562,7 +4282,15 @@ abstract class UnaryExpNode extends ExpNode {
         myExp.nameAnalysis(symTab);
     }
     
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myExp);
+    }
+
     // one child
+    public ExpNode exp() {
+        return myExp;
+    }
+
     protected ExpNode myExp;
 }
 
@@ -2598,9 +4326,49 @@ abstract class BinaryExpNode extends ExpNode {
         myExp2.nameAnalysis(symTab);
     }
     
+    public void addKids(List<ASTnode> kids) {
+        kids.add(myExp1);
+        kids.add(myExp2);
+    }
+
     // two kids
     protected ExpNode myExp1;
     protected ExpNode myExp2;
+
+	// JVM code for an operator taking both operands from the stack
+	protected void jvmGen(int opcode) {
+		myExp1.jvmGen();
+		myExp2.jvmGen();
+		JvmGen.generate(opcode);
+	}
+	
+	// JVM code for a comparison: 1 if the branch ifOp is taken, else 0
+	protected void jvmGenCompare(int ifOp) {
+		String trueLab = JvmGen.nextLabel();
+		String endLab = JvmGen.nextLabel();
+		myExp1.jvmGen();
+		myExp2.jvmGen();
+		JvmGen.genJump(ifOp, trueLab);
+		JvmGen.genInt(0);
+		JvmGen.genJump(JvmGen.GOTO, endLab);
+		JvmGen.genLabel(trueLab);
+		JvmGen.genInt(1);
+		JvmGen.genLabel(endLab);
+	}
+	
+	// add "value = exp1 op exp2" to the control-flow graph being built
+	protected Cfg.Operand cfgGen(Cfg cfg, String op) {
+		Cfg.Operand left = cfg.keep(myExp1.cfgGen(cfg), myExp2);
+		Cfg.Var value = cfg.newTemp();
+		cfg.add(op, value, left, myExp2.cfgGen(cfg));
+		return value;
+	}
+	
+	// end the current block with "if exp1 cond exp2"
+	protected void cfgJump(Cfg cfg, String cond, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		Cfg.Operand left = cfg.keep(myExp1.cfgGen(cfg), myExp2);
+		cfg.branch(cond, left, myExp2.cfgGen(cfg), ifTrue, ifFalse);
+	}
 }
 
 // **********************************************************************
@@ -2645,11 +4413,32 @@ class UnaryMinusNode extends UnaryExpNode {
 
 	@Override
 	public void codeGen() {
+		if (Select.gen(this))
+			return;
 		myExp.codeGen();
 		Codegen.genPop(Codegen.T0);
 		Codegen.generate("sub", Codegen.T0, "$zero", Codegen.T0);	
 		Codegen.genPush(Codegen.T0);
 	}
+	
+	@Override
+	public void jvmGen() {
+		myExp.jvmGen();
+		JvmGen.generate(JvmGen.INEG);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp exp = myExp.closure();
+		return f -> -exp.eval(f);
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		Cfg.Var value = cfg.newTemp();
+		cfg.add("neg", value, myExp.cfgGen(cfg));
+		return value;
+	}
 }
 
 class NotNode extends UnaryExpNode {
@@ -2691,11 +4480,38 @@ class NotNode extends UnaryExpNode {
 
 	@Override
 	public void codeGen() {
+		if (Select.gen(this))
+			return;
 		myExp.codeGen();
 		Codegen.genPop(Codegen.T0);
 		Codegen.generate("xor", Codegen.T0, Codegen.T0, Codegen.TRUE);
 		Codegen.genPush(Codegen.T0);
 	}
+	
+	@Override
+	public void jvmGen() {
+		myExp.jvmGen();
+		JvmGen.genInt(1);
+		JvmGen.generate(JvmGen.IXOR);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp exp = myExp.closure();
+		return f -> exp.eval(f) ^ 1;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		Cfg.Var value = cfg.newTemp();
+		cfg.add("xor", value, myExp.cfgGen(cfg), new Cfg.Const(1));
+		return value;
+	}
+	
+	@Override
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		myExp.cfgJump(cfg, ifFalse, ifTrue);
+	}
 }
 
 // **********************************************************************
@@ -2733,6 +4549,33 @@ abstract class ArithmeticExpNode extends BinaryExpNode {
         
         return retType;
     }
+    
+	/**
+	 * Return the value of exp if it is an integer literal or a negated
+	 * one, or null if it is anything else.
+	 */
+	protected static Integer constValue(ExpNode exp) {
+		if (exp instanceof IntLitNode)
+			return ((IntLitNode)exp).value();
+		if (exp instanceof UnaryMinusNode &&
+		    ((UnaryMinusNode)exp).exp() instanceof IntLitNode)
+			return -((IntLitNode)((UnaryMinusNode)exp).exp()).value();
+		return null;
+	}
+	
+	// with -cse, a value computed earlier in the basic block is loaded
+	// from its temporary instead (see Cse); with -select, the whole tree
+	// may be covered by Select
+	@Override
+	public void codeGen() {
+		if (Cse.genReuse(this) || Select.gen(this))
+			return;
+		genValue();
+		Cse.genSave(this);
+	}
+	
+	// code pushing the value of the operation
+	abstract protected void genValue();
 }
 
 abstract class LogicalExpNode extends BinaryExpNode {
@@ -2766,6 +4609,21 @@ abstract class LogicalExpNode extends BinaryExpNode {
         
         return retType;
     }
+	
+	// the value is computed by branching on the condition
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		Cfg.Var value = cfg.newTemp();
+		Cfg.Block yes = cfg.newBlock(), no = cfg.newBlock(), done = cfg.newBlock();
+		cfgJump(cfg, yes, no);
+		cfg.startBlock(yes);
+		cfg.add("move", value, new Cfg.Const(1));
+		cfg.jump(done);
+		cfg.startBlock(no);
+		cfg.add("move", value, new Cfg.Const(0));
+		cfg.startBlock(done);
+		return value;
+	}
 }
 
 abstract class EqualityExpNode extends BinaryExpNode {
@@ -2817,6 +4675,18 @@ abstract class EqualityExpNode extends BinaryExpNode {
         
         return retType;
     }
+
+	// strings (which can only be literals) compare as references, like
+	// the addresses of the MIPS code
+	protected boolean isStringCompare() {
+		return myExp1 instanceof StringLitNode || myExp2 instanceof StringLitNode;
+	}
+	
+	// whether two string literals are the same string; the MIPS code
+	// (and the JVM) keep one copy of each
+	protected boolean stringsEqual() {
+		return ((StringLitNode)myExp1).value().equals(((StringLitNode)myExp2).value());
+	}
 }
 
 abstract class RelationalExpNode extends BinaryExpNode {
@@ -2871,7 +4741,7 @@ class PlusNode extends ArithmeticExpNode {
 	}
 
 	@Override
-	public void codeGen() {
+	protected void genValue() {
 		 myExp1.codeGen();
 		 myExp2.codeGen();
 	     Codegen.genPop(Codegen.T1);
@@ -2879,6 +4749,23 @@ class PlusNode extends ArithmeticExpNode {
 	     Codegen.generate("add", Codegen.T0, Codegen.T0, Codegen.T1);
 	     Codegen.genPush(Codegen.T0);
 	}
+	
+	@Override
+	public void jvmGen() {
+		jvmGen(JvmGen.IADD);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) + b.eval(f);
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return cfgGen(cfg, "add");
+	}
 }
 
 class MinusNode extends ArithmeticExpNode {
@@ -2900,7 +4787,7 @@ class MinusNode extends ArithmeticExpNode {
 	}
 
 	@Override
-	public void codeGen() {
+	protected void genValue() {
 		 myExp1.codeGen();
 		 myExp2.codeGen();
 	     Codegen.genPop(Codegen.T1);
@@ -2908,6 +4795,23 @@ class MinusNode extends ArithmeticExpNode {
 	     Codegen.generate("sub", Codegen.T0, Codegen.T0, Codegen.T1);
 	     Codegen.genPush(Codegen.T0);
 	}
+	
+	@Override
+	public void jvmGen() {
+		jvmGen(JvmGen.ISUB);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) - b.eval(f);
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return cfgGen(cfg, "sub");
+	}
 }
 
 class TimesNode extends ArithmeticExpNode {
@@ -2932,14 +4836,113 @@ class TimesNode extends ArithmeticExpNode {
 
 
 	@Override
-	public void codeGen() {
+	protected void genValue() {
+		if (Codegen.strength) {
+			Integer c2 = constValue(myExp2);
+			Integer c1 = constValue(myExp1);
+			if (c2 != null && genConst(myExp1, c2))
+				return;
+			if (c1 != null && genConst(myExp2, c1))
+				return;
+		}
 		 myExp1.codeGen();
 		 myExp2.codeGen();
 	     Codegen.genPop(Codegen.T1);
 	     Codegen.genPop(Codegen.T0);                  
-	     Codegen.generate("mulo", Codegen.T0, Codegen.T0, Codegen.T1);
+	     if (Codegen.wrap) {
+	         Codegen.generate("mult", Codegen.T0, Codegen.T1);
+	         Codegen.generate("mflo", Codegen.T0);
+	     }
+	     else
+	         Codegen.generate("mulo", Codegen.T0, Codegen.T0, Codegen.T1);
 	     Codegen.genPush(Codegen.T0);		
 	}
+	
+	// multiply exp by the constant c with shifts and adds, if c is 0, 1
+	// or (up to sign) a power of two or the sum or difference of two;
+	// return false, generating nothing, otherwise.  The shifts wrap on
+	// overflow, so unless -wrap allows that, a value that would overflow
+	// goes to mulo instead, which traps as before.
+	private static boolean genConst(ExpNode exp, int c) {
+		long abs = Math.abs((long)c);
+		int hi = 63 - Long.numberOfLeadingZeros(abs);
+		int lo = Long.numberOfTrailingZeros(abs);
+		long rest = abs - (1L << hi);
+		boolean sum = c != 0 && Long.bitCount(rest) == 1;
+		boolean diff = c != 0 && Long.bitCount(abs + (1L << lo)) == 1;
+		if (c != 0 && rest != 0 && !sum && !diff)
+			return false;
+		
+		exp.codeGen();
+		Codegen.genPop(Codegen.T0);
+		if (c == 0)
+			Codegen.generate("li", Codegen.T0, 0);
+		else {
+			if (!Codegen.wrap)
+				genOverflowCheck(c);
+			if (rest == 0) {                            // 2^hi
+				if (hi > 0)
+					Codegen.generate("sll", Codegen.T0, Codegen.T0, hi);
+			}
+			else if (sum) {                             // 2^hi + 2^lo
+				Codegen.generate("sll", Codegen.T1, Codegen.T0, hi);
+				if (lo > 0)
+					Codegen.generate("sll", Codegen.T0, Codegen.T0, lo);
+				Codegen.generate("addu", Codegen.T0, Codegen.T1, Codegen.T0);
+			}
+			else {                                      // 2^(hi+1) - 2^lo
+				Codegen.generate("sll", Codegen.T1, Codegen.T0, hi+1);
+				if (lo > 0)
+					Codegen.generate("sll", Codegen.T0, Codegen.T0, lo);
+				Codegen.generate("subu", Codegen.T0, Codegen.T1, Codegen.T0);
+			}
+			if (c < 0)
+				Codegen.generate("subu", Codegen.T0, "$zero", Codegen.T0);
+		}
+		Codegen.genPush(Codegen.T0);
+		return true;
+	}
+	
+	// go on if T0 * c fits in an int, and otherwise multiply with mulo,
+	// which traps on the overflow
+	private static void genOverflowCheck(int c) {
+		long min = Integer.MIN_VALUE, max = Integer.MAX_VALUE;
+		long lo = c > 0 ? -Math.floorDiv(-min, c) : -Math.floorDiv(-max, c);
+		long hi = c > 0 ? Math.floorDiv(max, c) : Math.floorDiv(min, c);
+		if (lo <= min && hi >= max)
+			return;                                     // c is 1
+		String ok = Codegen.nextLabel();
+		if (lo > min && hi < max) {
+			String trap = Codegen.nextLabel();
+			Codegen.generate("blt", Codegen.T0, "" + lo, trap);
+			Codegen.generate("ble", Codegen.T0, "" + hi, ok);
+			Codegen.genLabel(trap);
+		}
+		else if (lo > min)
+			Codegen.generate("bge", Codegen.T0, "" + lo, ok);
+		else
+			Codegen.generate("ble", Codegen.T0, "" + hi, ok);
+		Codegen.generate("li", Codegen.T1, c);
+		Codegen.generate("mulo", Codegen.T0, Codegen.T0, Codegen.T1);
+		Codegen.genLabel(ok);
+	}
+	
+	@Override
+	public void jvmGen() {
+		jvmGen(JvmGen.IMUL);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) * b.eval(f);
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return cfgGen(cfg, "mulo");
+	}
 }
 
 class DivideNode extends ArithmeticExpNode {
@@ -2961,14 +4964,122 @@ class DivideNode extends ArithmeticExpNode {
 	}
 
 	@Override
-	public void codeGen() {
+	protected void genValue() {
+		Integer c = constValue(myExp2);
+		if (byShifts(c)) {
+			myExp1.codeGen();
+			Codegen.genPop(Codegen.T0);
+			genConst(c);
+			Codegen.genPush(Codegen.T0);
+			return;
+		}
 		 myExp1.codeGen();
 		 myExp2.codeGen();
 	     Codegen.genPop(Codegen.T1);
 	     Codegen.genPop(Codegen.T0);                  
-	     Codegen.generate("div", Codegen.T0, Codegen.T0, Codegen.T1);
+	     if (Codegen.wrap && c != null && c != 0) {
+	         // no need for the check of the divisor div makes
+	         Codegen.generate("div", Codegen.T0, Codegen.T1);
+	         Codegen.generate("mflo", Codegen.T0);
+	     }
+	     else
+	         Codegen.generate("div", Codegen.T0, Codegen.T0, Codegen.T1);
 	     Codegen.genPush(Codegen.T0);		
 	}
+	
+	/**
+	 * Return true if a divide by the constant c (null if not constant) is
+	 * done with genConst under -strength.  Dividing the smallest int by -1
+	 * overflows, so that is left to div unless -wrap allows wrapping.
+	 */
+	public static boolean byShifts(Integer c) {
+		return Codegen.strength && c != null && c != 0 &&
+		       (c != -1 || Codegen.wrap);
+	}
+	
+	// divide T0 by the nonzero constant d, truncating toward zero like div
+	private static void genConst(int d) {
+		long abs = Math.abs((long)d);
+		int k = Long.numberOfTrailingZeros(abs);
+		if (abs == 1) {
+			// nothing to do
+		}
+		else if (abs == 1L << k) {
+			// shifting right rounds down, so first add 2^k-1 if negative
+			Codegen.generate("sra", Codegen.T1, Codegen.T0, 31);
+			Codegen.generate("srl", Codegen.T1, Codegen.T1, 32-k);
+			Codegen.generate("addu", Codegen.T0, Codegen.T0, Codegen.T1);
+			Codegen.generate("sra", Codegen.T0, Codegen.T0, k);
+		}
+		else {
+			// the high word of T0 * m, shifted, is the quotient or one
+			// less than it when negative (see Hacker's Delight, 10-3)
+			int[] ms = magic(d);
+			Codegen.generate("li", Codegen.T1, ms[0]);
+			Codegen.generate("mult", Codegen.T0, Codegen.T1);
+			Codegen.generate("mfhi", Codegen.T1);
+			if (d > 0 && ms[0] < 0)
+				Codegen.generate("addu", Codegen.T1, Codegen.T1, Codegen.T0);
+			else if (d < 0 && ms[0] > 0)
+				Codegen.generate("subu", Codegen.T1, Codegen.T1, Codegen.T0);
+			if (ms[1] > 0)
+				Codegen.generate("sra", Codegen.T1, Codegen.T1, ms[1]);
+			Codegen.generate("srl", Codegen.T0, Codegen.T1, 31);
+			Codegen.generate("addu", Codegen.T0, Codegen.T1, Codegen.T0);
+			return;
+		}
+		if (d < 0)
+			Codegen.generate("subu", Codegen.T0, "$zero", Codegen.T0);
+	}
+	
+	// return { m, s } such that n/d is the high word of n*m shifted right
+	// by s, corrected as in genConst; d must not be -1, 0 or 1
+	private static int[] magic(int d) {
+		final long two31 = 0x80000000L;
+		long ad = Math.abs((long)d);
+		long t = two31 + ((d & 0xFFFFFFFFL) >>> 31);
+		long anc = t - 1 - t % ad;
+		int p = 31;
+		long q1 = two31 / anc, r1 = two31 - q1*anc;
+		long q2 = two31 / ad, r2 = two31 - q2*ad;
+		long delta;
+		do {
+			p++;
+			q1 = (2*q1) & 0xFFFFFFFFL;
+			r1 = 2*r1;
+			if (r1 >= anc) {
+				q1++;
+				r1 -= anc;
+			}
+			q2 = (2*q2) & 0xFFFFFFFFL;
+			r2 = 2*r2;
+			if (r2 >= ad) {
+				q2++;
+				r2 -= ad;
+			}
+			delta = ad - r2;
+		} while (q1 < delta || (q1 == delta && r1 == 0));
+		
+		int m = (int)(q2 + 1);
+		return new int[] { d < 0 ? -m : m, p - 32 };
+	}
+	
+	@Override
+	public void jvmGen() {
+		jvmGen(JvmGen.IDIV);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) / b.eval(f);
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return cfgGen(cfg, "div");
+	}
 }
 
 class AndNode extends LogicalExpNode {
@@ -2994,9 +5105,11 @@ class AndNode extends LogicalExpNode {
 
 	@Override
 	public void codeGen() {
+		if (Select.gen(this))
+			return;
 		String andEndLabel = Codegen.nextLabel();		
 	    myExp1.codeGen();
-		Codegen.generateIndexed("lw", Codegen.T0, Codegen.SP, 4);
+		Codegen.genPeek(Codegen.T0, 1);
 		Codegen.generate("beq", Codegen.T0,"$zero", andEndLabel);
 	    myExp2.codeGen();
         Codegen.genPop(Codegen.T1);
@@ -3005,6 +5118,32 @@ class AndNode extends LogicalExpNode {
 		Codegen.genPush(Codegen.T0);
         Codegen.genLabel(andEndLabel);		
 	}
+	
+	@Override
+	public void jvmGen() {
+		String endLab = JvmGen.nextLabel();
+		myExp1.jvmGen();
+		JvmGen.generate(JvmGen.DUP);
+		JvmGen.genJump(JvmGen.IFEQ, endLab);
+		JvmGen.generate(JvmGen.POP);
+		myExp2.jvmGen();
+		JvmGen.genLabel(endLab);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) != 0 ? b.eval(f) : 0;
+	}
+	
+	@Override
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		Cfg.Block second = cfg.newBlock();
+		myExp1.cfgJump(cfg, second, ifFalse);
+		cfg.startBlock(second);
+		myExp2.cfgJump(cfg, ifTrue, ifFalse);
+	}
 }
 
 class OrNode extends LogicalExpNode {
@@ -3031,10 +5170,11 @@ class OrNode extends LogicalExpNode {
 
 	@Override
 	public void codeGen() {
-		
+		if (Select.gen(this))
+			return;
 		String orEndLabel = Codegen.nextLabel();
 	    myExp1.codeGen();
-		Codegen.generateIndexed("lw", Codegen.T0, Codegen.SP, 4);
+		Codegen.genPeek(Codegen.T0, 1);
 		Codegen.generate("bne", Codegen.T0,"$zero", orEndLabel);
 
 	    myExp2.codeGen();
@@ -3046,6 +5186,32 @@ class OrNode extends LogicalExpNode {
 		Codegen.genLabel(orEndLabel);
 		
 	}
+	
+	@Override
+	public void jvmGen() {
+		String endLab = JvmGen.nextLabel();
+		myExp1.jvmGen();
+		JvmGen.generate(JvmGen.DUP);
+		JvmGen.genJump(JvmGen.IFNE, endLab);
+		JvmGen.generate(JvmGen.POP);
+		myExp2.jvmGen();
+		JvmGen.genLabel(endLab);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) != 0 ? 1 : b.eval(f);
+	}
+	
+	@Override
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		Cfg.Block second = cfg.newBlock();
+		myExp1.cfgJump(cfg, ifTrue, second);
+		cfg.startBlock(second);
+		myExp2.cfgJump(cfg, ifTrue, ifFalse);
+	}
 }
 
 class EqualsNode extends EqualityExpNode {
@@ -3062,6 +5228,8 @@ class EqualsNode extends EqualityExpNode {
     }
     
     public void codeGen() {
+		if (Select.gen(this))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3072,6 +5240,8 @@ class EqualsNode extends EqualityExpNode {
 	}
 	
 	public void genJumpCode (String truelabel, String falselabel) {
+		if (Select.genJump(this, truelabel, falselabel))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3079,6 +5249,32 @@ class EqualsNode extends EqualityExpNode {
 		Codegen.generate("beq", Codegen.T0, Codegen.T1, truelabel);
 		Codegen.generate("b", falselabel);
 	}
+	
+	@Override
+	public void jvmGen() {
+		jvmGenCompare(isStringCompare() ? JvmGen.IF_ACMPEQ : JvmGen.IF_ICMPEQ);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		if (isStringCompare()) {
+			final int value = stringsEqual() ? 1 : 0;
+			return f -> value;
+		}
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) == b.eval(f) ? 1 : 0;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return cfgGen(cfg, "seq");
+	}
+	
+	@Override
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		cfgJump(cfg, "beq", ifTrue, ifFalse);
+	}
 }
 
 class NotEqualsNode extends EqualityExpNode {
@@ -3095,6 +5291,8 @@ class NotEqualsNode extends EqualityExpNode {
     }
     
     public void codeGen() {
+		if (Select.gen(this))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3105,6 +5303,8 @@ class NotEqualsNode extends EqualityExpNode {
 	}
 	
 	public void genJumpCode (String truelabel, String falselabel) {
+		if (Select.genJump(this, truelabel, falselabel))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3113,6 +5313,32 @@ class NotEqualsNode extends EqualityExpNode {
 		Codegen.generate("b", falselabel);
 	}
     
+	
+	@Override
+	public void jvmGen() {
+		jvmGenCompare(isStringCompare() ? JvmGen.IF_ACMPNE : JvmGen.IF_ICMPNE);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		if (isStringCompare()) {
+			final int value = stringsEqual() ? 0 : 1;
+			return f -> value;
+		}
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) != b.eval(f) ? 1 : 0;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return cfgGen(cfg, "sne");
+	}
+	
+	@Override
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		cfgJump(cfg, "bne", ifTrue, ifFalse);
+	}
 }
 
 class LessNode extends RelationalExpNode {
@@ -3129,6 +5355,8 @@ class LessNode extends RelationalExpNode {
     }
     
     public void codeGen() {
+		if (Select.gen(this))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3139,6 +5367,8 @@ class LessNode extends RelationalExpNode {
 	}
 	
 	public void genJumpCode (String truelabel, String falselabel) {
+		if (Select.genJump(this, truelabel, falselabel))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3146,6 +5376,28 @@ class LessNode extends RelationalExpNode {
 		Codegen.generate("blt", Codegen.T0, Codegen.T1, truelabel);
 		Codegen.generate("b", falselabel);
 	}
+	
+	@Override
+	public void jvmGen() {
+		jvmGenCompare(JvmGen.IF_ICMPLT);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) < b.eval(f) ? 1 : 0;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return cfgGen(cfg, "slt");
+	}
+	
+	@Override
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		cfgJump(cfg, "blt", ifTrue, ifFalse);
+	}
 }
 
 class GreaterNode extends RelationalExpNode {
@@ -3162,6 +5414,8 @@ class GreaterNode extends RelationalExpNode {
     }
     
     public void codeGen() {
+		if (Select.gen(this))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3172,6 +5426,8 @@ class GreaterNode extends RelationalExpNode {
 	}
 	
 	public void genJumpCode (String truelabel, String falselabel) {
+		if (Select.genJump(this, truelabel, falselabel))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3180,6 +5436,28 @@ class GreaterNode extends RelationalExpNode {
 		Codegen.generate("b", falselabel);
 	}
     
+	
+	@Override
+	public void jvmGen() {
+		jvmGenCompare(JvmGen.IF_ICMPGT);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) > b.eval(f) ? 1 : 0;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return cfgGen(cfg, "sgt");
+	}
+	
+	@Override
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		cfgJump(cfg, "bgt", ifTrue, ifFalse);
+	}
 }
 
 class LessEqNode extends RelationalExpNode {
@@ -3196,6 +5474,8 @@ class LessEqNode extends RelationalExpNode {
     }
     
     public void codeGen() {
+		if (Select.gen(this))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3206,6 +5486,8 @@ class LessEqNode extends RelationalExpNode {
 	}
 	
 	public void genJumpCode (String truelabel, String falselabel) {
+		if (Select.genJump(this, truelabel, falselabel))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3213,6 +5495,28 @@ class LessEqNode extends RelationalExpNode {
 		Codegen.generate("ble", Codegen.T0, Codegen.T1, truelabel);
 		Codegen.generate("b", falselabel);
 	}
+	
+	@Override
+	public void jvmGen() {
+		jvmGenCompare(JvmGen.IF_ICMPLE);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) <= b.eval(f) ? 1 : 0;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return cfgGen(cfg, "sle");
+	}
+	
+	@Override
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		cfgJump(cfg, "ble", ifTrue, ifFalse);
+	}
 }
 
 class GreaterEqNode extends RelationalExpNode {
@@ -3230,6 +5534,8 @@ class GreaterEqNode extends RelationalExpNode {
 
 	//For statements like $t0 = $t0 >= $t1 ? 1 : 0
 	public void codeGen() {
+		if (Select.gen(this))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3240,6 +5546,8 @@ class GreaterEqNode extends RelationalExpNode {
 	}
 	
 	public void genJumpCode (String truelabel, String falselabel) {
+		if (Select.genJump(this, truelabel, falselabel))
+			return;
 		myExp1.codeGen();
 		myExp2.codeGen();
 		Codegen.genPop(Codegen.T1);
@@ -3248,4 +5556,26 @@ class GreaterEqNode extends RelationalExpNode {
 		Codegen.generate("b", falselabel);
 	}
 	
+	
+	@Override
+	public void jvmGen() {
+		jvmGenCompare(JvmGen.IF_ICMPGE);
+	}
+	
+	@Override
+	public Interp.Exp closure() {
+		final Interp.Exp a = myExp1.closure();
+		final Interp.Exp b = myExp2.closure();
+		return f -> a.eval(f) >= b.eval(f) ? 1 : 0;
+	}
+	
+	@Override
+	public Cfg.Operand cfgGen(Cfg cfg) {
+		return cfgGen(cfg, "sge");
+	}
+	
+	@Override
+	public void cfgJump(Cfg cfg, Cfg.Block ifTrue, Cfg.Block ifFalse) {
+		cfgJump(cfg, "bge", ifTrue, ifFalse);
+	}
 }